@@ -77,8 +77,7 @@ public abstract class AbstractUnixLikeDocumentsProvider extends DocumentsProvide
 
 	protected static int S_IR = 4, S_IW = 2, S_IX = 1;
 
-	// an URI without path part
-	// TODO support multiple roots
+	// an URI without path part, of the root the current call is for
 	protected abstract Uri getRootUri();
 
 	protected String pathFromDocumentId(String documentId) {
@@ -131,6 +130,10 @@ public abstract class AbstractUnixLikeDocumentsProvider extends DocumentsProvide
 			return 32;
 		}
 	};
+	static {
+		// with the key and the entry, about 200 bytes for 32 units
+		MemoryGovernor.register("XDG thumbnail names", xdgThumbnailNameCache, 6);
+	}
 	protected String getXDGThumbnailFile(String name) {
 		return xdgThumbnailNameCache.get(name) + ".png";
 	}
@@ -155,8 +158,11 @@ public abstract class AbstractUnixLikeDocumentsProvider extends DocumentsProvide
 		} catch (FileNotFoundException e) {
 		}
 
+		if (signal != null) {
+			signal.throwIfCanceled();
+		}
 		if (Build.VERSION.SDK_INT >= 30 && ExifInterface.isSupportedMimeType(getDocumentType(documentId))) {
-			ParcelFileDescriptor fd = openDocument(documentId, "r", null);
+			ParcelFileDescriptor fd = openDocument(documentId, "r", signal);
 
 			var stream = new AutoCloseInputStream(fd);
 
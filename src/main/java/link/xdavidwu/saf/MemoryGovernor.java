@@ -0,0 +1,200 @@
+package link.xdavidwu.saf;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+ * Budgets of in-memory caches, scaled down together to fit a share of the
+ * heap, and trimmed together on memory pressure
+ *
+ * Caches are sized in their own units, like entries or bytes; each comes
+ * with an estimate of bytes per unit, for usage to be comparable. Pools
+ * other than LruCache are sized in bytes, and may change what they ask
+ * for, calling rebalance() then.
+ */
+public class MemoryGovernor {
+	private static final String LOG_NAME = "MemoryGovernor";
+	// of the heap, the rest is for everything else
+	private static final int HEAP_SHARE = 4;
+
+	public interface Trimmable {
+		// in bytes
+		long size();
+
+		// as configured
+		long requested();
+
+		// the lower of requested and what is set by resize()
+		long maxSize();
+
+		void resize(long maxSize);
+
+		void trimToSize(long size);
+	}
+
+	private static class Registration {
+		private final String name;
+		private final LruCache<?, ?> cache;
+		private final Trimmable pool;
+		private final int requested, bytesPerUnit;
+		private long trimmed = 0;
+
+		private Registration(String name, LruCache<?, ?> cache,
+				int bytesPerUnit) {
+			this.name = name;
+			this.cache = cache;
+			this.pool = null;
+			this.requested = cache.maxSize();
+			this.bytesPerUnit = bytesPerUnit;
+		}
+
+		private Registration(String name, Trimmable pool) {
+			this.name = name;
+			this.cache = null;
+			this.pool = pool;
+			this.requested = 0;
+			this.bytesPerUnit = 1;
+		}
+
+		// in bytes
+		private long requestedBytes() {
+			return cache != null ? (long) requested * bytesPerUnit :
+				pool.requested();
+		}
+
+		private long used() {
+			return cache != null ? (long) cache.size() * bytesPerUnit :
+				pool.size();
+		}
+
+		private long max() {
+			return cache != null ? (long) cache.maxSize() * bytesPerUnit :
+				pool.maxSize();
+		}
+
+		private void scale(double scale) {
+			if (cache != null) {
+				cache.resize((int) Math.max(1, requested * scale));
+			} else {
+				pool.resize((long) (pool.requested() * scale));
+			}
+		}
+
+		private void trim(double keep) {
+			if (cache != null) {
+				var evicted = cache.evictionCount();
+				// -1 for everything, even when sized in units of 0
+				cache.trimToSize(keep == 0 ? -1 : (int) (cache.maxSize() * keep));
+				trimmed += cache.evictionCount() - evicted;
+			} else {
+				var before = pool.size();
+				pool.trimToSize((long) (pool.maxSize() * keep));
+				trimmed += before - pool.size();
+			}
+		}
+	}
+
+	private static final long limit =
+		Runtime.getRuntime().maxMemory() / HEAP_SHARE;
+	private static ArrayList<Registration> registrations = new ArrayList<>();
+	private static double scale = 1;
+	private static int trims = 0, lastLevel = 0;
+
+	// with the budget it was created with as what it asks for
+	public static synchronized void register(String name,
+			LruCache<?, ?> cache, int bytesPerUnit) {
+		registrations.add(new Registration(name, cache, bytesPerUnit));
+		rebalance();
+	}
+
+	public static synchronized void unregister(LruCache<?, ?> cache) {
+		registrations.removeIf(r -> r.cache == cache);
+		rebalance();
+	}
+
+	public static synchronized void register(String name, Trimmable pool) {
+		registrations.add(new Registration(name, pool));
+		rebalance();
+	}
+
+	public static synchronized void unregister(Trimmable pool) {
+		registrations.removeIf(r -> r.pool == pool);
+		rebalance();
+	}
+
+	// not to be called with locks of registered pools held
+	public static synchronized void rebalance() {
+		long requested = 0;
+		for (var r : registrations) {
+			requested += r.requestedBytes();
+		}
+		scale = requested > limit ? (double) limit / requested : 1;
+		for (var r : registrations) {
+			r.scale(scale);
+		}
+	}
+
+	// fraction of each cache to keep, budgets are left as is
+	private static double keepOnTrim(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+			return 0;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			return 0.25;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			return 0.5;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			// about the settings activity, not us
+			return 1;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			return 0.25;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			return 0.5;
+		}
+		return 0.75;
+	}
+
+	public static synchronized void onTrimMemory(int level) {
+		var keep = keepOnTrim(level);
+		if (keep >= 1) {
+			return;
+		}
+		trims++;
+		lastLevel = level;
+		for (var r : registrations) {
+			r.trim(keep);
+		}
+		Log.i(LOG_NAME, "trimmed to " + keep + " on level " + level);
+	}
+
+	public static void onLowMemory() {
+		onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
+	public static synchronized void dump(PrintWriter writer) {
+		var runtime = Runtime.getRuntime();
+		long used = 0;
+		for (var r : registrations) {
+			used += r.used();
+		}
+		writer.println("memory: caches ~" + used / 1024 + " KiB of " +
+			limit / 1024 + " KiB, budgets scaled by " +
+			String.format(Locale.ROOT, "%.2f", scale) + ", heap " +
+			(runtime.totalMemory() - runtime.freeMemory()) / 1024 + " KiB of " +
+			runtime.maxMemory() / 1024 + " KiB, " + trims +
+			" trims (last level " + lastLevel + ")");
+		for (var r : registrations) {
+			var c = r.cache;
+			writer.println("  " + r.name + ": ~" + r.used() / 1024 +
+				" KiB of ~" + r.max() / 1024 + " KiB, " + (c != null ?
+					c.hitCount() + " hits, " + c.missCount() + " misses, " +
+					c.evictionCount() + " evictions (" + r.trimmed +
+					" on trims)" :
+					r.trimmed / 1024 + " KiB on trims"));
+		}
+	}
+}
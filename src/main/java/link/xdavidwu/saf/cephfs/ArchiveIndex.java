@@ -0,0 +1,380 @@
+package link.xdavidwu.saf.cephfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipException;
+
+/*
+ * Members of a ZIP or uncompressed TAR archive, read with range reads
+ *
+ * For ZIP, only the end of central directory and the central directory
+ * are read. For TAR, each header is read, skipping member data. Directories
+ * not recorded in the archive are implied by member names.
+ */
+public class ArchiveIndex {
+	protected static final int METHOD_STORED = 0, METHOD_DEFLATED = 8;
+	// listed, but never opened to serve ciphertext
+	protected static final int METHOD_ENCRYPTED = -1;
+	// of what is read whole, against malformed or hostile archives
+	private static final int MAX_CEN_SIZE = 16 * 1024 * 1024,
+		MAX_TAR_RECORD = 1024 * 1024;
+
+	/*
+	 * offset is where data starts for TAR, and the local header for ZIP,
+	 * resolved with dataOffset
+	 */
+	protected record Member(String name, boolean isDir, long size,
+			long compressedSize, int method, long offset, long mtime) {}
+
+	protected interface Source {
+		// reads into the start of buf
+		int read(long offset, byte[] buf, int size) throws IOException;
+	}
+
+	private final long mtime, length;
+	private boolean zip;
+	private final Map<String, Member> members = new HashMap<>();
+	// directory to names of children, "" for top level
+	private final Map<String, TreeMap<String, Boolean>> children =
+		new HashMap<>();
+
+	private ArchiveIndex(long mtime, long length) {
+		this.mtime = mtime;
+		this.length = length;
+		children.put("", new TreeMap<>());
+	}
+
+	protected static boolean isSupportedMethod(Member m) {
+		return m.method() == METHOD_STORED || m.method() == METHOD_DEFLATED;
+	}
+
+	protected static boolean isArchive(String name) {
+		var lower = name.toLowerCase(Locale.ROOT);
+		return lower.endsWith(".zip") || lower.endsWith(".tar");
+	}
+
+	// to validate against stat of the archive
+	protected boolean isValid(long mtime, long length) {
+		return this.mtime == mtime && this.length == length;
+	}
+
+	protected int size() {
+		return members.size();
+	}
+
+	protected Member get(String name) {
+		return members.get(name);
+	}
+
+	// null if not a directory
+	protected List<Member> list(String dir) {
+		var names = children.get(dir);
+		if (names == null) {
+			return null;
+		}
+		var prefix = dir.isEmpty() ? "" : dir + "/";
+		var result = new ArrayList<Member>(names.size());
+		names.keySet().forEach(n -> result.add(members.get(prefix + n)));
+		return result;
+	}
+
+	private void add(Member m) {
+		var name = m.name();
+		while (name.startsWith("/") || name.startsWith("./")) {
+			name = name.substring(name.startsWith("/") ? 1 : 2);
+		}
+		while (name.endsWith("/")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		if (name.isEmpty() || name.equals(".")) {
+			return;
+		}
+		m = new Member(name, m.isDir(), m.size(), m.compressedSize(),
+			m.method(), m.offset(), m.mtime());
+		members.put(name, m);
+		if (m.isDir()) {
+			children.putIfAbsent(name, new TreeMap<>());
+		}
+		// imply parents
+		var child = name;
+		var slash = child.lastIndexOf('/');
+		while (true) {
+			var parent = slash == -1 ? "" : child.substring(0, slash);
+			children.computeIfAbsent(parent, k -> new TreeMap<>())
+				.put(child.substring(slash + 1), true);
+			if (parent.isEmpty() || members.containsKey(parent)) {
+				break;
+			}
+			members.put(parent,
+				new Member(parent, true, 0, 0, METHOD_STORED, 0, m.mtime()));
+			child = parent;
+			slash = child.lastIndexOf('/');
+		}
+	}
+
+	protected static ArchiveIndex load(String name, long mtime, long length,
+			Source source) throws IOException {
+		var index = new ArchiveIndex(mtime, length);
+		try {
+			if (name.toLowerCase(Locale.ROOT).endsWith(".zip")) {
+				index.zip = true;
+				index.loadZip(source);
+			} else {
+				index.loadTar(source);
+			}
+		} catch (RuntimeException e) {
+			// out of bounds fields, bad numbers
+			throw new ZipException("malformed " + name + ": " + e);
+		}
+		return index;
+	}
+
+	private static byte[] readFully(Source source, long offset, int size)
+			throws IOException {
+		var buf = new byte[size];
+		var chunk = new byte[size];
+		int read = 0;
+		while (read < size) {
+			var n = source.read(offset + read, chunk, size - read);
+			if (n <= 0) {
+				throw new ZipException("truncated");
+			}
+			System.arraycopy(chunk, 0, buf, read, n);
+			read += n;
+		}
+		return buf;
+	}
+
+	private static final int EOCD_SIG = 0x06054b50, EOCD_SIZE = 22,
+		ZIP64_LOCATOR_SIG = 0x07064b50, ZIP64_LOCATOR_SIZE = 20,
+		ZIP64_EOCD_SIG = 0x06064b50, CEN_SIG = 0x02014b50, CEN_SIZE = 46,
+		LOC_SIG = 0x04034b50, LOC_SIZE = 30;
+	private static final int MAX_COMMENT = 0xffff;
+
+	private void loadZip(Source source) throws IOException {
+		var tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT +
+			ZIP64_LOCATOR_SIZE);
+		var tail = ByteBuffer.wrap(readFully(source, length - tailSize, tailSize))
+			.order(ByteOrder.LITTLE_ENDIAN);
+		int eocd = -1;
+		for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == EOCD_SIG) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1) {
+			throw new ZipException("no end of central directory");
+		}
+		long cenSize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+		long cenOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+		if ((cenSize == 0xffffffffL || cenOffset == 0xffffffffL) &&
+				eocd >= ZIP64_LOCATOR_SIZE &&
+				tail.getInt(eocd - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIG) {
+			var zip64 = ByteBuffer.wrap(readFully(source,
+					tail.getLong(eocd - ZIP64_LOCATOR_SIZE + 8), 56))
+				.order(ByteOrder.LITTLE_ENDIAN);
+			if (zip64.getInt(0) != ZIP64_EOCD_SIG) {
+				throw new ZipException("bad zip64 end of central directory");
+			}
+			cenSize = zip64.getLong(40);
+			cenOffset = zip64.getLong(48);
+		}
+		if (cenOffset < 0 || cenSize < 0 || cenOffset + cenSize > length ||
+				cenSize > MAX_CEN_SIZE) {
+			throw new ZipException("bad central directory");
+		}
+
+		var cen = ByteBuffer.wrap(readFully(source, cenOffset, (int) cenSize))
+			.order(ByteOrder.LITTLE_ENDIAN);
+		int pos = 0;
+		while (pos + CEN_SIZE <= cenSize && cen.getInt(pos) == CEN_SIG) {
+			var flags = Short.toUnsignedInt(cen.getShort(pos + 8));
+			var method = Short.toUnsignedInt(cen.getShort(pos + 10));
+			var time = Short.toUnsignedInt(cen.getShort(pos + 12));
+			var date = Short.toUnsignedInt(cen.getShort(pos + 14));
+			long compressed = Integer.toUnsignedLong(cen.getInt(pos + 20));
+			long size = Integer.toUnsignedLong(cen.getInt(pos + 24));
+			var nameLen = Short.toUnsignedInt(cen.getShort(pos + 28));
+			var extraLen = Short.toUnsignedInt(cen.getShort(pos + 30));
+			var commentLen = Short.toUnsignedInt(cen.getShort(pos + 32));
+			long offset = Integer.toUnsignedLong(cen.getInt(pos + 42));
+			if (pos + CEN_SIZE + nameLen + extraLen + commentLen > cenSize) {
+				throw new ZipException("bad central directory entry");
+			}
+			// names not flagged as UTF-8 are CP437, close enough for ASCII
+			var name = new String(cen.array(), pos + CEN_SIZE, nameLen,
+				StandardCharsets.UTF_8);
+
+			// zip64 extended information, fields present only if saturated
+			var extra = pos + CEN_SIZE + nameLen;
+			var extraEnd = extra + extraLen;
+			while (extra + 4 <= extraEnd) {
+				var id = Short.toUnsignedInt(cen.getShort(extra));
+				var len = Short.toUnsignedInt(cen.getShort(extra + 2));
+				if (id == 0x0001) {
+					var field = extra + 4;
+					if (size == 0xffffffffL && field + 8 <= extraEnd) {
+						size = cen.getLong(field);
+						field += 8;
+					}
+					if (compressed == 0xffffffffL && field + 8 <= extraEnd) {
+						compressed = cen.getLong(field);
+						field += 8;
+					}
+					if (offset == 0xffffffffL && field + 8 <= extraEnd) {
+						offset = cen.getLong(field);
+					}
+				}
+				extra += 4 + len;
+			}
+
+			if (size < 0 || compressed < 0 || offset < 0) {
+				throw new ZipException("bad sizes of " + name);
+			}
+			add(new Member(name, name.endsWith("/"), size, compressed,
+				(flags & 1) != 0 ? METHOD_ENCRYPTED : method, offset,
+				dosToMillis(date, time)));
+			pos += CEN_SIZE + nameLen + extraLen + commentLen;
+		}
+	}
+
+	private static long dosToMillis(int date, int time) {
+		var c = Calendar.getInstance();
+		c.clear();
+		c.set(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0xf) - 1, date & 0x1f,
+			(time >> 11) & 0x1f, (time >> 5) & 0x3f, (time & 0x1f) * 2);
+		return c.getTimeInMillis();
+	}
+
+	/*
+	 * Where data of a member starts, costs a read of its local header for ZIP
+	 */
+	protected long dataOffset(Member m, Source source) throws IOException {
+		if (!zip) {
+			return m.offset();
+		}
+		var loc = ByteBuffer.wrap(readFully(source, m.offset(), LOC_SIZE))
+			.order(ByteOrder.LITTLE_ENDIAN);
+		if (loc.getInt(0) != LOC_SIG) {
+			throw new ZipException("bad local header");
+		}
+		return m.offset() + LOC_SIZE + Short.toUnsignedInt(loc.getShort(26)) +
+			Short.toUnsignedInt(loc.getShort(28));
+	}
+
+	private static final int TAR_BLOCK = 512;
+
+	private static String tarString(byte[] b, int offset, int len) {
+		int end = offset;
+		while (end < offset + len && b[end] != 0) {
+			end++;
+		}
+		return new String(b, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static long tarNumber(byte[] b, int offset, int len) {
+		// base-256, for large sizes
+		if ((b[offset] & 0x80) != 0) {
+			long v = b[offset] & 0x7f;
+			for (int i = 1; i < len; i++) {
+				v = (v << 8) | (b[offset + i] & 0xff);
+			}
+			return v;
+		}
+		var s = tarString(b, offset, len).trim();
+		return s.isEmpty() ? 0 : Long.parseLong(s, 8);
+	}
+
+	private static String paxPath(byte[] records) {
+		String path = null;
+		int pos = 0;
+		// "<length> <key>=<value>\n"
+		while (pos < records.length) {
+			var space = pos;
+			while (space < records.length && records[space] != ' ') {
+				space++;
+			}
+			if (space == records.length) {
+				break;
+			}
+			var len = Integer.parseInt(new String(records, pos, space - pos,
+				StandardCharsets.US_ASCII));
+			if (len <= 0 || pos + len > records.length) {
+				break;
+			}
+			var record = new String(records, space + 1, pos + len - space - 2,
+				StandardCharsets.UTF_8);
+			if (record.startsWith("path=")) {
+				path = record.substring(5);
+			}
+			pos += len;
+		}
+		return path;
+	}
+
+	private void loadTar(Source source) throws IOException {
+		long pos = 0;
+		String longName = null;
+		while (pos + TAR_BLOCK <= length) {
+			var h = readFully(source, pos, TAR_BLOCK);
+			if (h[0] == 0) {
+				// end of archive
+				break;
+			}
+			var size = tarNumber(h, 124, 12);
+			if (size < 0 || size > length) {
+				throw new ZipException("bad tar size");
+			}
+			var type = (char) h[156];
+			var data = pos + TAR_BLOCK;
+			pos = data + (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+			if (pos > length) {
+				throw new ZipException("truncated tar");
+			}
+
+			if ((type == 'L' || type == 'x') && size > MAX_TAR_RECORD) {
+				throw new ZipException("tar record too large");
+			}
+			switch (type) {
+			case 'L' -> {
+				longName = tarString(readFully(source, data, (int) size), 0,
+					(int) size);
+				continue;
+			}
+			case 'x' -> {
+				longName = paxPath(readFully(source, data, (int) size));
+				continue;
+			}
+			case 'g' -> {
+				continue;
+			}
+			}
+
+			var name = tarString(h, 0, 100);
+			// ustar prefix
+			if (tarString(h, 257, 5).equals("ustar") && h[345] != 0) {
+				name = tarString(h, 345, 155) + "/" + name;
+			}
+			if (longName != null) {
+				name = longName;
+				longName = null;
+			}
+			var isDir = type == '5';
+			// links and devices show up as empty files
+			var isRegular = type == '0' || type == '\0' || type == '7';
+			add(new Member(name, isDir, isRegular ? size : 0,
+				isRegular ? size : 0, METHOD_STORED, data,
+				tarNumber(h, 136, 12) * 1000));
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.os.ProxyFileDescriptorCallback;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.ceph.fs.CephMount;
+
+/*
+ * Read-only view of a member of an archive, reading only its byte range
+ *
+ * Deflated members are inflated sequentially, seeking backwards starts
+ * over from the beginning of the member.
+ */
+public class ArchiveMemberCallback extends ProxyFileDescriptorCallback {
+	private static final String LOG_NAME = "ArchiveMemberCallback";
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private CephFSExecutor executor;
+	private String path;
+	private ArchiveIndex index;
+	private ArchiveIndex.Member member;
+	private String caller;
+	private CephMount cm;
+	private int fd = -1;
+	private long dataOffset = -1;
+
+	private Inflater inflater;
+	// in inflated and compressed bytes
+	private long position = 0, consumed = 0;
+	private byte[] input = new byte[CHUNK_SIZE];
+
+	public ArchiveMemberCallback(CephFSExecutor executor, String path,
+			ArchiveIndex index, ArchiveIndex.Member member, String caller) {
+		this.executor = executor;
+		this.caller = caller;
+		this.path = path;
+		this.index = index;
+		this.member = member;
+		if (member.method() == ArchiveIndex.METHOD_DEFLATED) {
+			inflater = new Inflater(true);
+		}
+	}
+
+	protected ArchiveIndex.Source source() {
+		return (offset, buf, size) -> executor.execute(
+				CephFSExecutor.Priority.DATA, caller, current -> {
+			if (current != cm) {
+				// first use, or remounted
+				fd = current.open(path, CephMount.O_RDONLY, 0);
+				cm = current;
+			}
+			return current.read(fd, buf, size, offset);
+		}).intValue();
+	}
+
+	private long dataOffset() throws IOException {
+		if (dataOffset == -1) {
+			dataOffset = index.dataOffset(member, source());
+		}
+		return dataOffset;
+	}
+
+	@Override
+	public long onGetSize() {
+		return member.size();
+	}
+
+	@Override
+	public int onRead(long offset, int size, byte[] data)
+			throws ErrnoException {
+		try (var section = Tracer.section("onRead", path)) {
+			size = (int) Math.min(size, member.size() - offset);
+			if (size <= 0) {
+				return 0;
+			}
+			CallerAccounting.meter(caller, size, false);
+			if (inflater == null) {
+				return source().read(dataOffset() + offset, data, size);
+			}
+			return inflate(offset, size, data);
+		} catch (DataFormatException e) {
+			Log.e(LOG_NAME, "inflate " + path + " " + member.name(), e);
+			throw new ErrnoException("read", OsConstants.EIO);
+		} catch (IOException e) {
+			throw CephFSExecutor.toErrnoException("read", e);
+		}
+	}
+
+	private int inflate(long offset, int size, byte[] data)
+			throws IOException, DataFormatException {
+		if (offset < position) {
+			inflater.reset();
+			position = consumed = 0;
+		}
+		byte[] skip = null;
+		while (position < offset) {
+			if (skip == null) {
+				skip = new byte[CHUNK_SIZE];
+			}
+			var n = inflateSome(skip, 0,
+				(int) Math.min(skip.length, offset - position));
+			if (n < 0) {
+				return 0;
+			}
+			position += n;
+		}
+		int copied = 0;
+		while (copied < size) {
+			var n = inflateSome(data, copied, size - copied);
+			if (n < 0) {
+				break;
+			}
+			copied += n;
+			position += n;
+		}
+		return copied;
+	}
+
+	// -1 at the end
+	private int inflateSome(byte[] buf, int offset, int len)
+			throws IOException, DataFormatException {
+		while (true) {
+			var n = inflater.inflate(buf, offset, len);
+			if (n > 0) {
+				return n;
+			}
+			if (inflater.finished() || inflater.needsDictionary()) {
+				return -1;
+			}
+			if (inflater.needsInput()) {
+				var remaining = member.compressedSize() - consumed;
+				if (remaining <= 0) {
+					return -1;
+				}
+				var read = source().read(dataOffset() + consumed, input,
+					(int) Math.min(input.length, remaining));
+				if (read <= 0) {
+					return -1;
+				}
+				consumed += read;
+				inflater.setInput(input, 0, read);
+			}
+		}
+	}
+
+	@Override
+	public void onRelease() {
+		if (inflater != null) {
+			inflater.end();
+		}
+		if (cm != null) {
+			try {
+				executor.execute(CephFSExecutor.Priority.DATA, caller, current -> {
+					if (current == cm) {
+						current.close(fd);
+					}
+					return null;
+				});
+			} catch (IOException e) {
+				Log.e(LOG_NAME, "close " + path, e);
+			}
+		}
+	}
+}
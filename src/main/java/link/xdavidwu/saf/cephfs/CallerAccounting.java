@@ -0,0 +1,134 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * What each calling app is doing to the cluster, and limits on how much
+ * data it may move
+ *
+ * Apps are told apart by package, from getCallingPackage(); work of our
+ * own, like prefetch and revalidation, counts as SELF. Bytes are those
+ * through proxy file descriptors, metered by a token bucket per app once a
+ * rate is set. DocumentsUI is never throttled, being what users browse
+ * with.
+ */
+public class CallerAccounting {
+	protected static final String SELF = "self";
+	// of the rate, what an app may use at once after being idle
+	private static final long BURST_MILLIS = 1000;
+	private static final Set<String> UNTHROTTLED = new HashSet<>(Arrays.asList(
+		SELF, "com.android.documentsui", "com.google.android.documentsui"));
+
+	private static class Usage {
+		private int inFlight = 0;
+		private long operations = 0, bytesRead = 0, bytesWritten = 0,
+			throttledMillis = 0;
+		// may go negative, as debt to be waited for
+		private double tokens = 0;
+		private long refilled = SystemClock.elapsedRealtime();
+	}
+
+	private static final ThreadLocal<String> caller = new ThreadLocal<>();
+	private static final HashMap<String, Usage> usages = new HashMap<>();
+	// in bytes per second, 0 for unlimited
+	private static long rate = 0;
+
+	/*
+	 * Sets the app operations from this thread are for. null, as of calls
+	 * from within the process, keeps the current one, SELF if none. Returns
+	 * the previous one for restoreCaller.
+	 */
+	protected static String enterCaller(String packageName) {
+		var previous = caller.get();
+		if (packageName != null) {
+			caller.set(packageName);
+		}
+		return previous;
+	}
+
+	protected static void restoreCaller(String previous) {
+		caller.set(previous);
+	}
+
+	protected static String getCaller() {
+		var c = caller.get();
+		return c == null ? SELF : c;
+	}
+
+	protected static synchronized void configure(long bytesPerSecond) {
+		rate = bytesPerSecond;
+		for (var u : usages.values()) {
+			u.tokens = 0;
+		}
+	}
+
+	private static Usage usageOf(String packageName) {
+		return usages.computeIfAbsent(packageName, k -> new Usage());
+	}
+
+	protected static synchronized void begin(String packageName) {
+		var u = usageOf(packageName);
+		u.inFlight++;
+		u.operations++;
+	}
+
+	protected static synchronized void end(String packageName) {
+		usageOf(packageName).inFlight--;
+	}
+
+	/*
+	 * Takes bytes about to be moved from the bucket of the app, waiting if
+	 * it is in debt
+	 */
+	protected static void meter(String packageName, int bytes, boolean write)
+			throws InterruptedIOException {
+		long wait = 0;
+		synchronized (CallerAccounting.class) {
+			var u = usageOf(packageName);
+			if (write) {
+				u.bytesWritten += bytes;
+			} else {
+				u.bytesRead += bytes;
+			}
+			if (rate == 0 || UNTHROTTLED.contains(packageName)) {
+				return;
+			}
+			var now = SystemClock.elapsedRealtime();
+			u.tokens = Math.min(rate * BURST_MILLIS / 1000.0,
+				u.tokens + (now - u.refilled) * rate / 1000.0);
+			u.refilled = now;
+			u.tokens -= bytes;
+			if (u.tokens < 0) {
+				wait = (long) (-u.tokens * 1000 / rate);
+				u.throttledMillis += wait;
+			}
+		}
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	protected static synchronized void dump(PrintWriter writer) {
+		writer.println("callers" + (rate == 0 ? "" :
+			" (" + rate / 1024 + " KiB/s each)") + ":");
+		for (Map.Entry<String, Usage> e : usages.entrySet()) {
+			var u = e.getValue();
+			writer.println("  " + e.getKey() + ": " + u.inFlight +
+				" in flight, " + u.operations + " operations, " +
+				u.bytesRead / 1024 + " KiB read, " + u.bytesWritten / 1024 +
+				" KiB written, throttled for " + u.throttledMillis + "ms");
+		}
+	}
+}
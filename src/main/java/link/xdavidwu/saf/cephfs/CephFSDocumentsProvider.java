@@ -3,8 +3,10 @@ package link.xdavidwu.saf.cephfs;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.graphics.Point;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
@@ -12,32 +14,48 @@ import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.AutoCloseInputStream;
 import android.os.Process;
+import android.os.ProxyFileDescriptorCallback;
 import android.os.storage.StorageManager;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
-import android.widget.Toast;
+import android.system.ErrnoException;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import link.xdavidwu.saf.AbstractUnixLikeDocumentsProvider;
 import link.xdavidwu.saf.MediaMetadataReader;
+import link.xdavidwu.saf.MemoryGovernor;
 import link.xdavidwu.saf.MetadataReader;
 import link.xdavidwu.saf.UncheckedAutoCloseable;
 
@@ -50,13 +68,32 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 	private ContentResolver cr;
 	private StorageManager sm;
 	private Handler ioHandler;
-	private CephFSExecutor executor;
+	// by calling app, so one throttled or slow does not hold up others
+	private HashMap<String, IOThread> ioThreads = new HashMap<>();
+	private static final int MAX_IO_THREADS = 8;
+	// after the last fd on it is released
+	private static final long IO_THREAD_IDLE_TIMEOUT = 60000;
+	private volatile List<CephFSRoot> roots = new ArrayList<>();
+	// of LoadGenerator while it runs, not listed
+	private volatile CephFSRoot testRoot;
+	// bound at entry points, like priority and cancellation of executors
+	private ThreadLocal<CephFSRoot> currentRoot = new ThreadLocal<>();
+	private ExecutorService rootQuerier = Executors.newCachedThreadPool();
+	private ExecutorService revalidator = Executors.newSingleThreadExecutor();
+	// by document ID
+	private Set<String> revalidating = ConcurrentHashMap.newKeySet();
+	private TransferEngine transfers = new TransferEngine();
+	private FileLayout largeFileLayout;
+	private Prefetcher prefetcher = new Prefetcher();
+	private boolean browseArchives = false;
+	private boolean showSnapshots = false;
 	private int uid = Process.myUid();
-	private ToastThread lthread;
 
 	private boolean checkPermissions = true;
 
 	private static final String AUTHORITY = "link.xdavidwu.saf.cephfs";
+	// per root, a stuck cluster is listed without capacity
+	private static final long ROOT_STATFS_TIMEOUT = 3000;
 
 	private static final String[] DEFAULT_ROOT_PROJECTION = new String[]{
 		Root.COLUMN_ROOT_ID,
@@ -95,28 +132,220 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 		return (getPermissions(cs) & S_IW) == S_IW;
 	}
 
-	private void toast(String message) {
-		Message msg = lthread.handler.obtainMessage();
-		msg.obj = APP_NAME + ": " + message;
-		lthread.handler.sendMessage(msg);
-	}
-
 	@Override
 	protected Uri getRootUri() {
-		return executor.config.getRootUri();
+		return root().executor.config.getRootUri();
+	}
+
+	private static class IOThread {
+		private final HandlerThread thread;
+		private final Handler handler;
+		// proxy fds on it
+		private int open = 0;
+		private long idleSince;
+
+		private IOThread(String caller) {
+			thread = new HandlerThread("IO thread " + caller);
+			thread.start();
+			handler = new Handler(thread.getLooper());
+		}
+	}
+
+	// of the caller if it has an IO thread, the shared one otherwise
+	private synchronized Handler ioHandlerOf(String caller) {
+		var io = ioThreads.get(caller);
+		return io != null ? io.handler : ioHandler;
+	}
+
+	/*
+	 * Counted as in use until releaseIOThread(); null for the shared one,
+	 * once there are too many apps with fds open
+	 */
+	private synchronized IOThread acquireIOThread(String caller) {
+		var io = ioThreads.get(caller);
+		if (io == null) {
+			if (ioThreads.size() >= MAX_IO_THREADS) {
+				quitIdleIOThreads(0);
+			}
+			if (ioThreads.size() >= MAX_IO_THREADS) {
+				return null;
+			}
+			io = new IOThread(caller);
+			ioThreads.put(caller, io);
+		}
+		io.open++;
+		return io;
+	}
+
+	private synchronized void releaseIOThread(IOThread io) {
+		if (io != null && --io.open == 0) {
+			io.idleSince = SystemClock.elapsedRealtime();
+			ioHandler.postDelayed(() -> quitIdleIOThreads(IO_THREAD_IDLE_TIMEOUT),
+				IO_THREAD_IDLE_TIMEOUT);
+		}
+	}
+
+	// after what is queued on them
+	private synchronized void quitIdleIOThreads(long idleFor) {
+		var now = SystemClock.elapsedRealtime();
+		ioThreads.values().removeIf(io -> {
+			if (io.open > 0 || now - io.idleSince < idleFor) {
+				return false;
+			}
+			io.thread.quitSafely();
+			return true;
+		});
+	}
+
+	// on the IO thread of the caller, kept until the fd is released
+	private ParcelFileDescriptor openProxyFileDescriptor(int mode,
+			ProxyFileDescriptorCallback callback, String caller)
+			throws IOException {
+		var io = acquireIOThread(caller);
+		try {
+			return sm.openProxyFileDescriptor(mode,
+					new ProxyFileDescriptorCallback() {
+				@Override
+				public long onGetSize() throws ErrnoException {
+					return callback.onGetSize();
+				}
+
+				@Override
+				public int onRead(long offset, int size, byte[] data)
+						throws ErrnoException {
+					return callback.onRead(offset, size, data);
+				}
+
+				@Override
+				public int onWrite(long offset, int size, byte[] data)
+						throws ErrnoException {
+					return callback.onWrite(offset, size, data);
+				}
+
+				@Override
+				public void onFsync() throws ErrnoException {
+					callback.onFsync();
+				}
+
+				@Override
+				public void onRelease() {
+					try {
+						callback.onRelease();
+					} finally {
+						releaseIOThread(io);
+					}
+				}
+			}, io != null ? io.handler : ioHandler);
+		} catch (IOException|RuntimeException e) {
+			releaseIOThread(io);
+			throw e;
+		}
+	}
+
+	private CephFSRoot root() {
+		var root = currentRoot.get();
+		if (root == null) {
+			throw new IllegalArgumentException("No such root");
+		}
+		return root;
+	}
+
+	// null root if documentId is of a root removed since
+	private CephFSRoot enterRoot(String documentId) {
+		var root = testRoot;
+		if (root != null && root.owns(documentId)) {
+			return enterRoot(root);
+		}
+		root = null;
+		for (var r : roots) {
+			if (r.owns(documentId)) {
+				root = r;
+				break;
+			}
+		}
+		return enterRoot(root);
+	}
+
+	private CephFSRoot enterRoot(CephFSRoot root) {
+		var previous = currentRoot.get();
+		currentRoot.set(root);
+		return previous;
+	}
+
+	private void restoreRoot(CephFSRoot previous) {
+		currentRoot.set(previous);
+	}
+
+	/*
+	 * The first root from its own settings, then more from "roots", one per
+	 * line in "id mon_host path", with keys from "root_keys" in the same
+	 * order, sharing other settings with the first. Lines of the older
+	 * "id key mon_host path" form, as before MainActivity moves keys out,
+	 * carry their own key.
+	 */
+	private List<CephFSExecutor.CephMountConfig> parseRoots(
+			SharedPreferences sp, HashMap<String, Object> common) {
+		var configs = new ArrayList<CephFSExecutor.CephMountConfig>();
+		var primary = new HashMap<String, Object>(common);
+		primary.put("mon_host", sp.getString("mon", ""));
+		primary.put("key", sp.getString("key", ""));
+		configs.add(new CephFSExecutor.CephMountConfig(sp.getString("id", ""),
+			sp.getString("path", ""), primary, false));
+		var keys = sp.getString("root_keys", "").trim().split("\\s+");
+		int keyed = 0;
+		for (var line : sp.getString("roots", "").split("\n")) {
+			var fields = line.trim().split("\\s+");
+			String key;
+			if (fields.length == 3) {
+				key = keyed < keys.length ? keys[keyed] : "";
+				keyed++;
+			} else if (fields.length == 4) {
+				key = fields[1];
+				fields = new String[]{fields[0], fields[2], fields[3]};
+			} else {
+				continue;
+			}
+			var config = new HashMap<String, Object>(common);
+			config.put("key", key);
+			config.put("mon_host", fields[1]);
+			var c = new CephFSExecutor.CephMountConfig(fields[0], fields[2],
+				config, true);
+			if (configs.stream().noneMatch(o -> o.getRootUri().equals(
+					c.getRootUri()))) {
+				configs.add(c);
+			}
+		}
+		return configs;
+	}
+
+	/*
+	 * Saved settings outlive crashes, so nothing here may throw: malformed
+	 * values are taken as the default, others clamped into the range
+	 */
+	private static long getLong(SharedPreferences sp, String key, long def,
+			long min, long max) {
+		try {
+			var value = Long.parseLong(sp.getString(key, "").trim());
+			return Math.max(min, Math.min(max, value));
+		} catch (NumberFormatException e) {
+			return def;
+		}
 	}
 
 	private SharedPreferences.OnSharedPreferenceChangeListener loadConfig =
 			(sp, key) -> {
-		var id = sp.getString("id", "");
-		var path = sp.getString("path", "");
-		var timeout = sp.getString("timeout", "");
-		timeout = timeout.matches("\\d+") ? timeout : "20";
+		// in seconds, or MiB for sizes and rates
+		var timeout = getLong(sp, "timeout", 20, 1, 3600);
+		var depth = (int) getLong(sp, "readahead_depth", 4, 0, 64);
+		var budget = getLong(sp, "readahead_budget", 64, 0, 4096);
+		var statfsInterval = getLong(sp, "statfs_interval", 30, 0, 86400);
+		var callerRate = getLong(sp, "caller_rate", 0, 0, 1024 * 1024);
+		var cacheSize = getLong(sp, "cache_size", 0, 0, 1024 * 1024);
 		var config = new HashMap<String, Object>();
 		checkPermissions = sp.getBoolean("permissions", true);
+		showSnapshots = sp.getBoolean("snapshots", false);
+		browseArchives = sp.getBoolean("archives", false);
 
-		config.put("mon_host", sp.getString("mon", ""));
-		config.put("key", sp.getString("key", ""));
 		config.put("client_mount_timeout", timeout);
 		config.put("client_dirsize_rbytes", false);
 		config.put("client_permissions", checkPermissions);
@@ -126,8 +355,47 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 		config.put("debug_client", 10);
 		config.put("ms_connection_ready_timeout", 3);
 
-		var c = new CephFSExecutor.CephMountConfig(id, path, config);
-		executor = new CephFSExecutor(c);
+		CallerAccounting.configure(callerRate * 1024 * 1024);
+		transfers.configure(depth, budget * 1024 * 1024,
+			sp.getBoolean("write_behind", false));
+		largeFileLayout = FileLayout.parse(sp.getString("layout", ""));
+		var pinned = Arrays.stream(sp.getString("pinned", "").split("\n"))
+			.map(String::trim).filter(p -> !p.isEmpty())
+			.collect(Collectors.toSet());
+		prefetcher.configure(sp.getBoolean("prefetch", false));
+		var record = sp.getBoolean("record", false);
+		if (record != WorkloadRecorder.isRecording()) {
+			WorkloadRecorder.configure(record ? getWorkloadFile() : null);
+		}
+
+		// unchanged mounts are kept, with their sessions
+		var old = roots;
+		var updated = new ArrayList<CephFSRoot>();
+		for (var c : parseRoots(sp, config)) {
+			var root = old.stream().filter(r -> r.executor.config.equals(c))
+				.findFirst().orElseGet(() -> new CephFSRoot(c, cr, AUTHORITY,
+					getContext().getCacheDir()));
+			root.clear();
+			if ("snapshots".equals(key)) {
+				// listings with or without .snap
+				root.store.clear();
+			}
+			root.watcher.configure(root.executor, sp.getBoolean("watch", false));
+			// pinned paths are of the first root
+			var primary = updated.isEmpty();
+			root.contentCache.configure(new File(getContext().getCacheDir(),
+					primary ? "content" :
+						"content-" + Integer.toHexString(root.rootUri.hashCode())),
+				// not purged by the system under storage pressure
+				primary ? new File(getContext().getFilesDir(), "pinned") : null,
+				cacheSize * 1024 * 1024,
+				primary ? pinned : Collections.emptySet(), root.executor);
+			root.stats.configure(statfsInterval * 1000);
+			updated.add(root);
+		}
+		roots = updated;
+		old.stream().filter(r -> !updated.contains(r))
+			.forEach(CephFSRoot::close);
 	};
 
 	@Override
@@ -136,8 +404,6 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 		sm = (StorageManager) getContext()
 			.getSystemService(Context.STORAGE_SERVICE);
 		cr = getContext().getContentResolver();
-		lthread = new ToastThread(getContext());
-		lthread.start();
 		HandlerThread ioThread = new HandlerThread("IO thread");
 		ioThread.start();
 		ioHandler = new Handler(ioThread.getLooper());
@@ -149,34 +415,92 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 		return true;
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		MemoryGovernor.onTrimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		MemoryGovernor.onLowMemory();
+	}
+
 	@Override
 	public String createDocument(String parentDocumentId, String mimeType,
 			String displayName) throws FileNotFoundException {
+		var previous = enterRoot(parentDocumentId);
+		var previousCaller = CallerAccounting.enterCaller(getCallingPackage());
+		var section = Tracer.section("createDocument", parentDocumentId);
+		try {
+			return createDocumentInRoot(parentDocumentId, mimeType, displayName);
+		} finally {
+			section.close();
+			CallerAccounting.restoreCaller(previousCaller);
+			restoreRoot(previous);
+		}
+	}
+
+	private String createDocumentInRoot(String parentDocumentId,
+			String mimeType, String displayName) throws FileNotFoundException {
 		Log.v(APP_NAME, "createDocument " + parentDocumentId + " " + mimeType + " " + displayName);
-		var path = pathFromDocumentId(parentDocumentId) + "/" + displayName;
+		var parentPath = pathFromDocumentId(parentDocumentId);
+		if (memberFromDocumentId(parentDocumentId) != null ||
+				isBrowsableArchive(parentPath)) {
+			throw new UnsupportedOperationException("Archives are read-only");
+		}
+		var path = parentPath + "/" + displayName;
 		if (mimeType.equals(Document.MIME_TYPE_DIR)) {
-			executor.executeWithUncheckedOrFNF(cm -> {
+			root().executor.executeWithUncheckedOrFNF(CephFSExecutor.once(cm -> {
 				cm.mkdir(path, 0700);
 				return null;
-			});
+			}));
 		} else {
-			executor.executeWithUncheckedOrFNF(cm -> {
-				int fd = cm.open(path, CephMount.O_WRONLY | CephMount.O_CREAT | CephMount.O_EXCL, 0700);
+			var flags = CephMount.O_WRONLY | CephMount.O_CREAT | CephMount.O_EXCL;
+			var layout = FileLayout.isLargeType(mimeType) ? largeFileLayout : null;
+			root().executor.executeWithUncheckedOrFNF(CephFSExecutor.once(cm -> {
+				int fd = layout == null ? cm.open(path, flags, 0700) :
+					cm.open(path, flags, 0700, layout.stripeUnit(),
+						layout.stripeCount(), layout.objectSize(), layout.pool());
 				cm.close(fd);
 				return null;
-			});
+			}));
 		}
+		root().listings.invalidate(root().keys.keyOf(parentPath));
+		root().store.invalidate(parentPath);
 		return documentIdFromPath(path);
 	}
 
 	@Override
 	public void deleteDocument(String documentId) throws FileNotFoundException {
+		var previous = enterRoot(documentId);
+		var previousCaller = CallerAccounting.enterCaller(getCallingPackage());
+		var section = Tracer.section("deleteDocument", documentId);
+		try {
+			deleteDocumentInRoot(documentId);
+		} finally {
+			section.close();
+			CallerAccounting.restoreCaller(previousCaller);
+			restoreRoot(previous);
+		}
+	}
+
+	private void deleteDocumentInRoot(String documentId)
+			throws FileNotFoundException {
 		Log.v(APP_NAME, "deleteDocument " + documentId);
+		if (memberFromDocumentId(documentId) != null) {
+			throw new UnsupportedOperationException("Archives are read-only");
+		}
 		var path = pathFromDocumentId(documentId);
-		executor.executeWithUncheckedOrFNF(cm -> {
+		root().executor.executeWithUncheckedOrFNF(CephFSExecutor.once(cm -> {
 			cm.unlink(path);
 			return null;
-		});
+		}));
+		var parentPath = pathFromDocumentId(toParentDocumentId(documentId));
+		root().listings.invalidate(root().keys.keyOf(parentPath));
+		root().store.invalidate(parentPath);
+		root().store.invalidateUnder(path);
+		root().keys.remove(path);
+		root().contentCache.invalidate(path);
 		cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
 			AUTHORITY, toParentDocumentId(documentId)), null, 0);
 	}
@@ -184,25 +508,114 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 	@Override
 	public String renameDocument(String documentId, String displayName)
 			throws FileNotFoundException {
+		var previous = enterRoot(documentId);
+		var previousCaller = CallerAccounting.enterCaller(getCallingPackage());
+		var section = Tracer.section("renameDocument", documentId);
+		try {
+			return renameDocumentInRoot(documentId, displayName);
+		} finally {
+			section.close();
+			CallerAccounting.restoreCaller(previousCaller);
+			restoreRoot(previous);
+		}
+	}
+
+	private String renameDocumentInRoot(String documentId, String displayName)
+			throws FileNotFoundException {
+		if (memberFromDocumentId(documentId) != null) {
+			throw new UnsupportedOperationException("Archives are read-only");
+		}
 		var fromPath = pathFromDocumentId(documentId);
 		var parentDocumentId = toParentDocumentId(documentId);
 		var toPath = pathFromDocumentId(parentDocumentId) + "/" + displayName;
-		executor.executeWithUncheckedOrFNF(cm -> {
+		root().executor.executeWithUncheckedOrFNF(CephFSExecutor.once(cm -> {
 			cm.rename(fromPath, toPath);
 			return null;
-		});
+		}));
+		root().listings.invalidate(root().keys.keyOf(pathFromDocumentId(parentDocumentId)));
+		root().store.invalidate(pathFromDocumentId(parentDocumentId));
+		// by path, not worth moving over
+		root().store.invalidateUnder(fromPath);
+		// what we know of the renamed itself and below stays
+		root().keys.rename(fromPath, toPath);
+		root().contentCache.rename(fromPath, toPath);
 		cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
 			AUTHORITY, parentDocumentId), null, 0);
 		return documentIdFromPath(toPath);
 	}
 
+	@Override
+	public Cursor query(Uri uri, String[] projection, Bundle queryArgs,
+			CancellationSignal cancellationSignal) {
+		String documentId = null;
+		try {
+			documentId = DocumentsContract.getDocumentId(uri);
+		} catch (IllegalArgumentException e) {
+			// roots
+		}
+		var previousRoot = documentId != null ? enterRoot(documentId) : null;
+		var previousCaller = CallerAccounting.enterCaller(getCallingPackage());
+		var previous = CephFSExecutor.enterCancellationSignal(
+			cancellationSignal);
+		var section = Tracer.section("query", uri.toString());
+		var start = System.nanoTime();
+		try {
+			return super.query(uri, projection, queryArgs, cancellationSignal);
+		} finally {
+			section.close();
+			WorkloadRecorder.record(queryCallOf(uri), documentId, null, start);
+			CephFSExecutor.restoreCancellationSignal(previous);
+			CallerAccounting.restoreCaller(previousCaller);
+			if (documentId != null) {
+				restoreRoot(previousRoot);
+			}
+		}
+	}
+
+	// as named in DocumentsProvider
+	private static String queryCallOf(Uri uri) {
+		var segments = uri.getPathSegments();
+		if (segments.size() == 1 && segments.get(0).equals("root")) {
+			return "queryRoots";
+		} else if (segments.get(segments.size() - 1).equals("children")) {
+			return "queryChildDocuments";
+		} else if (segments.size() >= 2 &&
+				segments.get(segments.size() - 2).equals("document")) {
+			return "queryDocument";
+		}
+		return "query";
+	}
+
 	@Override
 	public ParcelFileDescriptor openDocument(String documentId,
 			String mode, CancellationSignal cancellationSignal)
 			throws UnsupportedOperationException,
 			FileNotFoundException {
+		var previousRoot = enterRoot(documentId);
+		var previousCaller = CallerAccounting.enterCaller(getCallingPackage());
+		var previous = CephFSExecutor.enterCancellationSignal(
+			cancellationSignal);
+		var section = Tracer.section("openDocument", documentId);
+		var start = System.nanoTime();
+		try {
+			return openDocumentCancellable(documentId, mode);
+		} finally {
+			section.close();
+			WorkloadRecorder.record("openDocument", documentId, mode, start);
+			CephFSExecutor.restoreCancellationSignal(previous);
+			CallerAccounting.restoreCaller(previousCaller);
+			restoreRoot(previousRoot);
+		}
+	}
+
+	private ParcelFileDescriptor openDocumentCancellable(String documentId,
+			String mode) throws FileNotFoundException {
 		Log.v(APP_NAME, "openDocument " + mode + " " + documentId);
 		var path = pathFromDocumentId(documentId);
+		var member = memberFromDocumentId(documentId);
+		if (member != null) {
+			return openArchiveMember(path, member, mode);
+		}
 		int flag, fdmode;
 		switch (mode) {
 		case "r":
@@ -213,29 +626,250 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 			flag = CephMount.O_RDWR;
 			fdmode = ParcelFileDescriptor.MODE_READ_WRITE;
 			break;
+		case "rwt":
+			flag = CephMount.O_RDWR | CephMount.O_TRUNC;
+			fdmode = ParcelFileDescriptor.MODE_READ_WRITE;
+			break;
 		case "w":
 			flag = CephMount.O_WRONLY;
 			fdmode = ParcelFileDescriptor.MODE_WRITE_ONLY;
 			break;
+		case "wt":
+			flag = CephMount.O_WRONLY | CephMount.O_TRUNC;
+			fdmode = ParcelFileDescriptor.MODE_WRITE_ONLY;
+			break;
+		// proxy fds start at 0, offsets are shifted by the callback instead
+		case "wa":
+			flag = CephMount.O_WRONLY | CephMount.O_APPEND;
+			fdmode = ParcelFileDescriptor.MODE_WRITE_ONLY;
+			break;
 		default:
 			throw new UnsupportedOperationException("Mode " + mode + " not implemented");
 		}
 
-		return executor.executeWithUncheckedOrFNF(cm -> {
+		if (root().contentCache.isEnabled()) {
+			if (flag == CephMount.O_RDONLY) {
+				var local = openCached(path);
+				if (local != null) {
+					return local;
+				}
+			} else {
+				root().contentCache.invalidate(path);
+			}
+		}
+
+		// only reads make sense in snapshots
+		var snapshotCache = SnapshotCache.isInSnapshot(path) &&
+			flag == CephMount.O_RDONLY &&
+			SnapshotCache.shouldCacheBlocks(statEntry(path).cs().size) ?
+			root().snapshots : null;
+		// reads for metadata stay in background, those of prefetches droppable
+		var current = CephFSExecutor.getPriority();
+		var priority = current == CephFSExecutor.Priority.BACKGROUND ||
+			current == CephFSExecutor.Priority.PREFETCH ?
+			current : CephFSExecutor.Priority.DATA;
+		var caller = CallerAccounting.getCaller();
+		return root().executor.executeWithUncheckedOrFNF(cm -> {
+			// truncated by the MDS as part of the open
 			int fd = cm.open(path, flag, 0);
-			return sm.openProxyFileDescriptor(fdmode,
-				new CephFSProxyFileDescriptorCallback(executor, cm, fd, path, flag),
-				ioHandler);
+			var size = (flag & CephMount.O_TRUNC) != 0 ? 0 : -1L;
+			if ((flag & CephMount.O_APPEND) != 0) {
+				// libcephfs only appends writes at the current position
+				var cs = new CephStat();
+				cm.fstat(fd, cs);
+				size = cs.size;
+			}
+			return openProxyFileDescriptor(fdmode,
+				new CephFSProxyFileDescriptorCallback(root().executor, cm, fd, path, flag,
+					size, transfers, snapshotCache, priority,
+					getTypeFromName(path.substring(path.lastIndexOf('/') + 1)),
+					caller),
+				caller);
 		});
 	}
 
-	private Object[] getDocumentRow(String dir, String displayName,
-			String[] cols, Set<String> thumbnails, CephStat parentStat)
+	// members of archives are the archive with the member as fragment
+	private String memberDocumentId(String archivePath, String member) {
+		return Uri.parse(documentIdFromPath(archivePath)).buildUpon()
+			.encodedFragment(Uri.encode(member, "/")).build().toString();
+	}
+
+	private static String memberFromDocumentId(String documentId) {
+		return Uri.parse(documentId).getFragment();
+	}
+
+	@Override
+	public boolean isChildDocument(String parentDocumentId,
+			String documentId) {
+		if (documentId.startsWith(parentDocumentId) &&
+				documentId.length() > parentDocumentId.length() &&
+				documentId.charAt(parentDocumentId.length()) == '#') {
+			return true;
+		}
+		return super.isChildDocument(parentDocumentId, documentId);
+	}
+
+	private boolean isBrowsableArchive(String name, CephStat cs) {
+		return browseArchives && cs.isFile() && ArchiveIndex.isArchive(name);
+	}
+
+	// costs a stat for names of archives
+	private boolean isBrowsableArchive(String path)
+			throws FileNotFoundException {
+		return browseArchives && ArchiveIndex.isArchive(path) &&
+			statEntry(path).cs().isFile();
+	}
+
+	private ArchiveIndex getArchiveIndex(CephMount cm, String path,
+			CephStat cs) throws IOException {
+		var index = root().archives.get(path);
+		if (index != null && index.isValid(cs.m_time, cs.size)) {
+			return index;
+		}
+		int fd = cm.open(path, CephMount.O_RDONLY, 0);
+		try {
+			index = ArchiveIndex.load(path, cs.m_time, cs.size,
+				(offset, buf, size) -> (int) cm.read(fd, buf, size, offset));
+		} finally {
+			cm.close(fd);
+		}
+		root().archives.put(path, index);
+		return index;
+	}
+
+	private ArchiveIndex.Member getArchiveMember(String path, String member)
+			throws FileNotFoundException {
+		var cs = statEntry(path).cs();
+		var m = root().executor.executeWithUncheckedOrFNF(
+			cm -> getArchiveIndex(cm, path, cs)).get(member);
+		if (m == null) {
+			throw new FileNotFoundException(member + " not found in " + path);
+		}
+		return m;
+	}
+
+	private ParcelFileDescriptor openArchiveMember(String path, String member,
+			String mode) throws FileNotFoundException {
+		if (!mode.equals("r")) {
+			throw new UnsupportedOperationException("Archives are read-only");
+		}
+		var cs = statEntry(path).cs();
+		var index = root().executor.executeWithUncheckedOrFNF(
+			cm -> getArchiveIndex(cm, path, cs));
+		var m = index.get(member);
+		if (m == null || m.isDir() || !ArchiveIndex.isSupportedMethod(m)) {
+			throw new FileNotFoundException("Cannot open " + member);
+		}
+		try {
+			var caller = CallerAccounting.getCaller();
+			return openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+				new ArchiveMemberCallback(root().executor, path, index, m, caller),
+				caller);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Object[] getMemberRow(String archivePath, ArchiveIndex.Member m,
+			String[] cols) {
+		var displayName = m.name().substring(m.name().lastIndexOf('/') + 1);
+		var mimeType = m.isDir() ? Document.MIME_TYPE_DIR :
+			getTypeFromName(displayName);
+		return Arrays.stream(cols).map(col -> switch (col) {
+			case Document.COLUMN_DISPLAY_NAME -> displayName;
+			case Document.COLUMN_DOCUMENT_ID ->
+				memberDocumentId(archivePath, m.name());
+			case Document.COLUMN_FLAGS -> !m.isDir() &&
+				typeSupportsMetadata(mimeType) ?
+				Document.FLAG_SUPPORTS_METADATA : 0;
+			case Document.COLUMN_LAST_MODIFIED -> m.mtime();
+			case Document.COLUMN_MIME_TYPE -> mimeType;
+			case Document.COLUMN_SIZE -> m.size();
+			default -> null;
+		}).toArray();
+	}
+
+	/*
+	 * In name order, sortOrder and paging are left to the client
+	 */
+	private Cursor queryArchiveChildren(String path, String member,
+			String[] cols, Uri notifUri) throws FileNotFoundException {
+		var errResult = new MatrixCursor(cols);
+		errResult.setNotificationUri(cr, notifUri);
+		var cs = statEntry(path).cs();
+		var index = root().executor.executeWithCursorExtra(
+			cm -> getArchiveIndex(cm, path, cs), errResult);
+		if (index == null) {
+			return errResult;
+		}
+		var members = index.list(member);
+		if (members == null) {
+			throw new FileNotFoundException(member + " not found in " + path);
+		}
+		var result = new MatrixCursor(cols, members.size());
+		result.setNotificationUri(cr, notifUri);
+		for (var m : members) {
+			result.addRow(getMemberRow(path, m, cols));
+		}
+		return result;
+	}
+
+	/*
+	 * Costs a stat to validate, returns null if not cached
+	 */
+	private ParcelFileDescriptor openCached(String path)
+			throws FileNotFoundException {
+		var cs = new CephStat();
+		File file;
+		try {
+			root().executor.execute(cm -> {
+				try {
+					cm.stat(path, cs);
+					return null;
+				} catch (CephNotDirectoryException e) {
+					throw new FileNotFoundException(e.getMessage());
+				}
+			});
+			file = root().contentCache.lookup(path, cs);
+			if (file == null) {
+				root().contentCache.fill(path, cs, root().executor);
+				return null;
+			}
+		} catch (FileNotFoundException e) {
+			root().contentCache.invalidate(path);
+			throw e;
+		} catch (IOException e) {
+			file = root().contentCache.lookupOffline(path);
+			if (file == null) {
+				// let the usual path report it
+				return null;
+			}
+			Log.w(APP_NAME, "serving pinned " + path + " offline", e);
+		}
+		return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+
+	private ListingCache.Entry statEntry(String path)
+			throws FileNotFoundException {
+		var inSnapshot = SnapshotCache.isInSnapshot(path);
+		if (inSnapshot) {
+			var cached = root().snapshots.getStat(path);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		var entry = statEntryUncached(path);
+		if (inSnapshot) {
+			root().snapshots.putStat(path, entry);
+		}
+		return entry;
+	}
+
+	private ListingCache.Entry statEntryUncached(String path)
 			throws FileNotFoundException {
-		var path = dir + displayName;
 		CephStat lcs = new CephStat();
 		// TODO consider EXTRA_ERROR?
-		executor.executeWithUncheckedOrFNF(cm -> {
+		root().executor.executeWithUncheckedOrFNF(cm -> {
 			try {
 				cm.lstat(path, lcs);
 				return null;
@@ -244,18 +878,35 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 			}
 		});
 
-		var wasSymlink = lcs.isSymlink();
-		CephStat cs = wasSymlink ? executor.executeWithUnchecked(cm -> {
+		CephStat cs = lcs.isSymlink() ? root().executor.executeWithUnchecked(cm -> {
 			try {
 				var ncs = new CephStat();
 				cm.stat(path, ncs);
 				return ncs;
 			} catch (FileNotFoundException|CephNotDirectoryException e) {
-				Log.e(APP_NAME, "stat: " + dir + displayName + " not found", e);
+				Log.e(APP_NAME, "stat: " + path + " not found", e);
 				return lcs;
 			}
 		}) : lcs;
-		String mimeType = getType(cs.mode, displayName);
+		return new ListingCache.Entry(lcs, cs);
+	}
+
+	private Object[] getDocumentRow(String dir, String displayName,
+			String[] cols, Set<String> thumbnails, CephStat parentStat)
+			throws FileNotFoundException {
+		return getDocumentRow(dir, displayName, cols,
+			statEntry(dir + displayName), thumbnails, parentStat);
+	}
+
+	private Object[] getDocumentRow(String dir, String displayName,
+			String[] cols, ListingCache.Entry entry, Set<String> thumbnails,
+			CephStat parentStat) {
+		var path = dir + displayName;
+		var lcs = entry.lcs();
+		var cs = entry.cs();
+		var wasSymlink = lcs.isSymlink();
+		String mimeType = isBrowsableArchive(displayName, cs) ?
+			Document.MIME_TYPE_DIR : getType(cs.mode, displayName);
 
 		return Arrays.stream(cols).map(col -> switch (col) {
 			case Document.COLUMN_DISPLAY_NAME -> displayName;
@@ -275,6 +926,10 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 					}
 					break;
 				case S_IFREG:
+					if (mimeType.equals(Document.MIME_TYPE_DIR)) {
+						// browsable archive, read-only
+						break;
+					}
 					if (typeSupportsMetadata(mimeType) && mayRead(cs)) {
 						// noinspection InlinedApi
 						flags |= Document.FLAG_SUPPORTS_METADATA;
@@ -294,7 +949,7 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 						} else {
 							String thubmailPath = dir + XDG_THUMBNAIL_NORMAL_DIR + thumbnail;
 							var ncs = new CephStat();
-							thumbnailFound = executor.executeWithUnchecked(cm -> {
+							thumbnailFound = root().executor.executeWithUnchecked(cm -> {
 								try {
 									cm.stat(thubmailPath, ncs);
 									return true;
@@ -311,7 +966,7 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 					break;
 				}
 
-				var mParentStat = parentStat == null ? executor.executeWithUnchecked(cm -> {
+				var mParentStat = parentStat == null ? root().executor.executeWithUnchecked(cm -> {
 					var st = new CephStat();
 					cm.stat(dir, st);
 					return st;
@@ -337,10 +992,20 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 			}
 			case Document.COLUMN_LAST_MODIFIED -> lcs.m_time;
 			case Document.COLUMN_MIME_TYPE -> mimeType;
-			case Document.COLUMN_SIZE -> lcs.size;
+			case Document.COLUMN_SIZE -> {
+				if (lcs.isDir()) {
+					// only if known, never worth a lookup per row
+					var key = root().keys.peek(path);
+					var dirStats = key == -1 ? null : root().stats.getCached(key);
+					if (dirStats != null) {
+						yield dirStats.bytes();
+					}
+				}
+				yield lcs.size;
+			}
 			case Document.COLUMN_SUMMARY -> {
 				if (cs.isSymlink()) {
-					var target = executor.executeWithUnchecked(cm -> cm.readlink(path));
+					var target = root().executor.executeWithUnchecked(cm -> cm.readlink(path));
 					yield "Broken symlink to " + target;
 				}
 				yield null;
@@ -353,38 +1018,329 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 	public Cursor queryChildDocuments(String parentDocumentId,
 			String[] projection, String sortOrder)
 			throws FileNotFoundException {
+		return queryChildDocuments(parentDocumentId, projection,
+			ListingSorter.Order.parse(sortOrder), 0, -1, null);
+	}
+
+	@Override
+	public Cursor queryChildDocuments(String parentDocumentId,
+			String[] projection, Bundle queryArgs)
+			throws FileNotFoundException {
+		var order = ListingSorter.Order.fromQueryArgs(queryArgs);
+		int offset = 0, limit = -1;
+		var honored = new ArrayList<String>();
+		if (order != null) {
+			if (queryArgs.containsKey(ContentResolver.QUERY_ARG_SORT_COLUMNS)) {
+				honored.add(ContentResolver.QUERY_ARG_SORT_COLUMNS);
+				honored.add(ContentResolver.QUERY_ARG_SORT_DIRECTION);
+			} else {
+				honored.add(ContentResolver.QUERY_ARG_SQL_SORT_ORDER);
+			}
+		}
+		if (queryArgs != null &&
+				queryArgs.containsKey(ContentResolver.QUERY_ARG_LIMIT)) {
+			limit = Math.max(0, queryArgs.getInt(ContentResolver.QUERY_ARG_LIMIT));
+			offset = Math.max(0, queryArgs.getInt(ContentResolver.QUERY_ARG_OFFSET, 0));
+			honored.add(ContentResolver.QUERY_ARG_LIMIT);
+			honored.add(ContentResolver.QUERY_ARG_OFFSET);
+		}
+		return queryChildDocuments(parentDocumentId, projection, order,
+			offset, limit, honored);
+	}
+
+	/*
+	 * Only rows from offset up to limit are built, limit -1 for all
+	 */
+	private Cursor queryChildDocuments(String parentDocumentId,
+			String[] projection, ListingSorter.Order order, int offset,
+			int limit, List<String> honored) throws FileNotFoundException {
 		var path = pathFromDocumentId(parentDocumentId);
 		var cols = projection != null ? projection : DEFAULT_DOC_PROJECTION;
 		var notifUri = DocumentsContract.buildChildDocumentsUri(
 				AUTHORITY, parentDocumentId);
+		var member = memberFromDocumentId(parentDocumentId);
+		if (member != null || isBrowsableArchive(path)) {
+			return queryArchiveChildren(path, member == null ? "" : member,
+				cols, notifUri);
+		}
 
 		MatrixCursor errResult = new MatrixCursor(cols);
 		errResult.setNotificationUri(cr, notifUri);
 		Log.v(APP_NAME, "queryChildDocuments " + parentDocumentId);
-		long listdirStart = System.currentTimeMillis();
-		String[] names = executor.executeWithCursorExtra(cm -> {
-			return cm.listdir(path);
-		}, errResult);
-		if (names == null) {
-			return errResult;
+		String rctime = null;
+		var loading = false;
+		ListingCache.Listing listing;
+		if (SnapshotCache.isInSnapshot(path)) {
+			listing = root().snapshots.getListing(path);
+			if (listing == null) {
+				listing = revalidateListing(path, null, null, errResult);
+				if (listing == null) {
+					return errResult;
+				}
+				root().snapshots.putListing(path, listing);
+			}
+		} else if (SnapshotCache.isSnapdir(path)) {
+			// no vxattrs here, and snapshots come and go
+			listing = revalidateListing(path, null, null, errResult);
+			if (listing == null) {
+				return errResult;
+			}
+		} else {
+			var key = root().keys.keyOf(path);
+			listing = root().listings.get(key);
+			var stale = listing == null ? root().store.get(path) : null;
+			if (stale != null) {
+				// likely a cold start, show what we had while finding out
+				listing = stale;
+				loading = true;
+				revalidateStale(parentDocumentId, path, stale);
+			} else {
+				rctime = root().executor.executeWithCursorExtra(cm -> {
+					return CephFSExecutor.getxattrString(cm, path, "ceph.dir.rctime");
+				}, errResult);
+				if (rctime == null) {
+					return errResult;
+				}
+
+				if (listing == null || !listing.rctime().equals(rctime)) {
+					listing = revalidateListing(path, rctime, listing, errResult);
+					if (listing == null) {
+						return errResult;
+					}
+				} else {
+					prefetcher.listings.used(key);
+				}
+				if (root().listings.get(key) == listing) {
+					root().store.put(path, listing);
+				}
+			}
 		}
 
-		var parentStat = executor.executeWithCursorExtra(cm -> {
+		var total = listing.names().length;
+		var from = Math.min(offset, total);
+		var to = limit < 0 ? total : (int) Math.min(total, (long) offset + limit);
+		var indices = order == null ? null : ListingSorter.sort(listing, order, to);
+		var page = new String[to - from];
+		for (int i = from; i < to; i++) {
+			page[i - from] = listing.names()[indices == null ? i : indices[i]];
+		}
+
+		// new with known size to avoid dynamic growth
+		var result = new ObservedMatrixCursor(cols, page.length);
+		result.setNotificationUri(cr, notifUri);
+		if (rctime != null) {
+			result.setOnClose(root().watcher.watch(parentDocumentId, path, rctime));
+		}
+		if (honored != null && !honored.isEmpty() || loading) {
+			var extras = new Bundle();
+			if (honored != null && !honored.isEmpty()) {
+				extras.putStringArray(ContentResolver.EXTRA_HONORED_ARGS,
+					honored.toArray(new String[0]));
+				extras.putInt(ContentResolver.EXTRA_TOTAL_COUNT, total);
+			}
+			extras.putBoolean(DocumentsContract.EXTRA_LOADING, loading);
+			result.setExtras(extras);
+		}
+
+		var dir = path + "/";
+		try (var section = Tracer.section("rows", path)) {
+			for (var name : page) {
+				// rows may still cost lookups
+				CephFSExecutor.throwIfCanceled();
+				result.addRow(getDocumentRow(dir, name, cols,
+					listing.entries().get(name), listing.thumbnails(),
+					listing.stat()));
+			}
+		}
+		if (rctime != null) {
+			schedulePrefetch(dir, listing, page);
+		}
+		return result;
+	}
+
+	/*
+	 * For listings from ListingStore, shown with EXTRA_LOADING
+	 *
+	 * Notifies even if nothing changed, as that is how DocumentsUI learns
+	 * loading is done; the query that follows is served from memory.
+	 */
+	private void revalidateStale(String parentDocumentId, String path,
+			ListingCache.Listing stale) {
+		if (!revalidating.add(parentDocumentId)) {
+			return;
+		}
+		var root = root();
+		revalidator.submit(() -> {
+			try {
+				inRoot(root, () -> {
+					var key = root.keys.keyOf(path);
+					var rctime = root.executor.execute(cm -> {
+						return CephFSExecutor.getxattrString(cm, path,
+							"ceph.dir.rctime");
+					});
+					if (stale.rctime().equals(rctime)) {
+						root.listings.put(key, stale);
+						return;
+					}
+					var fresh = revalidateListing(path, rctime, stale,
+						new MatrixCursor(new String[0]));
+					// or the next query would show the stale one again
+					if (fresh != null && root.listings.get(key) == fresh) {
+						root.store.put(path, fresh);
+					} else {
+						root.store.invalidate(path);
+					}
+				});
+			} catch (IOException|RuntimeException e) {
+				Log.w(APP_NAME, "revalidate " + path, e);
+				root.store.invalidate(path);
+			} finally {
+				revalidating.remove(parentDocumentId);
+				cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
+					AUTHORITY, parentDocumentId), null, 0);
+			}
+		});
+	}
+
+	// names in the order shown
+	private void schedulePrefetch(String dir, ListingCache.Listing listing,
+			String[] names) {
+		if (!prefetcher.isEnabled()) {
+			return;
+		}
+		var tasks = new ArrayList<Prefetcher.Task>();
+		var root = root();
+		int directories = 0, files = 0;
+		for (var name : names) {
+			var entry = listing.entries().get(name);
+			if (entry.cs().isDir() && !name.equals(SnapshotCache.getSnapdirName()) &&
+					directories < Prefetcher.MAX_DIRECTORIES) {
+				directories++;
+				tasks.add(() -> inRoot(root, () -> prefetchListing(dir + name)));
+			} else if (entry.cs().isFile() && files < Prefetcher.MAX_THUMBNAILS) {
+				// roughly the first page
+				files++;
+				tasks.add(() -> inRoot(root, () -> prefetchThumbnail(dir, name,
+					entry.cs(), listing.thumbnails())));
+			}
+		}
+		prefetcher.schedule(tasks);
+	}
+
+	private void inRoot(CephFSRoot root, Prefetcher.Task task)
+			throws IOException {
+		var previous = enterRoot(root);
+		try {
+			task.run();
+		} finally {
+			restoreRoot(previous);
+		}
+	}
+
+	private void prefetchListing(String path) throws IOException {
+		var key = root().keys.keyOf(path);
+		// sizes of subdirectories come along, for rows of this listing
+		var rctime = root().stats.get(root().executor, key, path).rctime();
+		var old = root().listings.get(key);
+		if (old != null && old.rctime().equals(rctime)) {
+			return;
+		}
+		var listing = revalidateListing(path, rctime, old,
+			new MatrixCursor(new String[0]));
+		if (listing != null && root().listings.get(key) == listing) {
+			prefetcher.listings.issued(key);
+		}
+	}
+
+	// small enough to cover EXIF thumbnails in practice
+	private static final int EXIF_HEAD_SIZE = 64 * 1024;
+	private static final int MAX_THUMBNAIL_SIZE = 256 * 1024;
+
+	private void prefetchThumbnail(String dir, String name, CephStat cs,
+			Set<String> thumbnails) throws IOException {
+		var path = dir + name;
+		var documentId = documentIdFromPath(path);
+		if (prefetcher.hasThumbnail(documentId, cs.m_time)) {
+			return;
+		}
+		var xdg = getXDGThumbnailFile(name);
+		byte[] data = null;
+		if (thumbnails != null && thumbnails.contains(xdg)) {
+			data = readHead(dir + XDG_THUMBNAIL_NORMAL_DIR + xdg,
+				MAX_THUMBNAIL_SIZE);
+		} else if (Build.VERSION.SDK_INT >= 30 &&
+				typeSupportsThumbnail(getType(cs.mode, name))) {
+			var exif = new ExifInterface(
+				new ByteArrayInputStream(readHead(path, EXIF_HEAD_SIZE)));
+			if (exif.hasThumbnail()) {
+				data = exif.getThumbnailBytes();
+			}
+		}
+		if (data != null) {
+			prefetcher.putThumbnail(documentId, cs.m_time, data);
+		}
+	}
+
+	private byte[] readHead(String path, int size) throws IOException {
+		return root().executor.execute(cm -> {
+			int fd = cm.open(path, CephMount.O_RDONLY, 0);
+			try {
+				var buf = new byte[size];
+				// libcephfs_jni reads into the start of the array
+				var chunk = new byte[size];
+				int read = 0;
+				while (read < size) {
+					var n = (int) cm.read(fd, chunk, size - read, read);
+					if (n <= 0) {
+						break;
+					}
+					System.arraycopy(chunk, 0, buf, read, n);
+					read += n;
+				}
+				return Arrays.copyOf(buf, read);
+			} finally {
+				cm.close(fd);
+			}
+		});
+	}
+
+	/*
+	 * Re-list only if mtime of the directory changed. Every entry is still
+	 * lstat'ed, as nothing cheaper tells which of them changed; only the
+	 * stat of symlink targets is kept while their lstat stays the same.
+	 *
+	 * Stored to ListingCache only with rctime.
+	 */
+	private ListingCache.Listing revalidateListing(String path, String rctime,
+			ListingCache.Listing old, Cursor errResult)
+			throws FileNotFoundException {
+		var parentStat = root().executor.executeWithCursorExtra(cm -> {
 			var st = new CephStat();
 			cm.stat(path, st);
 			return st;
 		}, errResult);
 		if (parentStat == null) {
-			return errResult;
+			return null;
 		}
 
-		// new with known size to avoid dynamic growth
-		var result = new MatrixCursor(cols, names.length);
-		result.setNotificationUri(cr, notifUri);
+		String[] names = old != null && old.stat().m_time == parentStat.m_time ?
+			old.names() : root().executor.executeWithCursorExtra(cm -> {
+				var listed = cm.listdir(path);
+				if (showSnapshots && !SnapshotCache.isInSnapshot(path) &&
+						!SnapshotCache.isSnapdir(path)) {
+					// hidden from readdir
+					listed = Arrays.copyOf(listed, listed.length + 1);
+					listed[listed.length - 1] = SnapshotCache.getSnapdirName();
+				}
+				return listed;
+			}, errResult);
+		if (names == null) {
+			return null;
+		}
 
 		String[] thumbnailFiles = null;
 		try {
-			thumbnailFiles = executor.execute(cm -> {
+			thumbnailFiles = root().executor.execute(cm -> {
 				try {
 					return cm.listdir(path + "/" + XDG_THUMBNAIL_NORMAL_DIR);
 				} catch (FileNotFoundException e) {
@@ -396,23 +1352,32 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 		}
 		var thumbnails = thumbnailFiles == null ? null : new HashSet<String>(Arrays.asList(thumbnailFiles));
 
-		long lstatsStart = System.currentTimeMillis();
 		var dir = path + "/";
-		Arrays.stream(names).map(o -> {
+		var entries = new HashMap<String, ListingCache.Entry>(names.length);
+		for (var name : names) {
+			// snapshot entries may not go through executor
+			CephFSExecutor.throwIfCanceled();
 			try {
-				return getDocumentRow(dir, o, cols, thumbnails, parentStat);
+				var entry = statEntry(dir + name);
+				var oldEntry = old != null ? old.entries().get(name) : null;
+				if (oldEntry != null && entry.lcs().isSymlink() &&
+						ListingCache.sameStat(oldEntry.lcs(), entry.lcs())) {
+					entry = oldEntry;
+				}
+				entries.put(name, entry);
 			} catch (FileNotFoundException e) {
-				return null;
-			}
-		}).forEach(r -> {
-			if (r != null) {
-				result.addRow(r);
 			}
-		});
-		long end = System.currentTimeMillis();
-		toast("queryChildDocuments: listdir: " + (lstatsStart - listdirStart) +
-				" lstats: " + (end - lstatsStart));
-		return result;
+		}
+		var presentNames = entries.size() == names.length ? names :
+			Arrays.stream(names).filter(entries::containsKey).toArray(String[]::new);
+
+		var listing = new ListingCache.Listing(rctime, parentStat,
+			presentNames, entries, thumbnails);
+		// without thumbnails, rows fall back to per-file lookups anyway
+		if (rctime != null && thumbnails != null) {
+			root().listings.put(root().keys.keyOf(path), listing);
+		}
+		return listing;
 	}
 
 	@Override
@@ -422,6 +1387,12 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 		var path = pathFromDocumentId(documentId);
 		MatrixCursor result = new MatrixCursor(
 			projection != null ? projection : DEFAULT_DOC_PROJECTION, 1);
+		var member = memberFromDocumentId(documentId);
+		if (member != null) {
+			result.addRow(getMemberRow(path, getArchiveMember(path, member),
+				result.getColumnNames()));
+			return result;
+		}
 		int dirIndex = path.lastIndexOf("/");
 		String filename = path.substring(dirIndex + 1);
 		String dir = path.substring(0, dirIndex + 1);
@@ -429,28 +1400,219 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 		return result;
 	}
 
-	private long getXattrULL(String path, String name)
+	@Override
+	public AssetFileDescriptor openDocumentThumbnail(String documentId,
+			Point sizeHint, CancellationSignal signal)
 			throws FileNotFoundException {
-		var buf = new byte[32];
-		var l = executor.executeWithUncheckedOrFNF(cm -> {
-			return cm.getxattr(path, name, buf);
-		}).intValue();
-		var s = new String(buf, 0, l);
-		return Long.parseUnsignedLong(s);
+		if (memberFromDocumentId(documentId) != null) {
+			throw new FileNotFoundException("No thumbnails in archives");
+		}
+		var previousRoot = enterRoot(documentId);
+		var previousCaller = CallerAccounting.enterCaller(getCallingPackage());
+		var previous = CephFSExecutor.setPriority(CephFSExecutor.Priority.DATA);
+		var previousSignal = CephFSExecutor.enterCancellationSignal(signal);
+		var section = Tracer.section("openDocumentThumbnail", documentId);
+		var start = System.nanoTime();
+		try {
+			if (prefetcher.isEnabled()) {
+				var path = pathFromDocumentId(documentId);
+				var data = prefetcher.getThumbnail(documentId,
+					statEntry(path).cs().m_time);
+				if (data != null) {
+					return openBytes(data);
+				}
+			}
+			return super.openDocumentThumbnail(documentId, sizeHint, signal);
+		} finally {
+			section.close();
+			WorkloadRecorder.record("openDocumentThumbnail", documentId, null,
+				start);
+			CephFSExecutor.restoreCancellationSignal(previousSignal);
+			CephFSExecutor.setPriority(previous);
+			CallerAccounting.restoreCaller(previousCaller);
+			restoreRoot(previousRoot);
+		}
+	}
+
+	private AssetFileDescriptor openBytes(byte[] data)
+			throws FileNotFoundException {
+		try {
+			// unlinked right away, the fd keeps it
+			var tmp = File.createTempFile("thumbnail", null,
+				getContext().getCacheDir());
+			try {
+				Files.write(tmp.toPath(), data);
+				var fd = ParcelFileDescriptor.open(tmp,
+					ParcelFileDescriptor.MODE_READ_ONLY);
+				return new AssetFileDescriptor(fd, 0, data.length);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		// replay [file [latency in ms [jitter in ms]]]
+		if (args.length > 0 && args[0].equals("replay")) {
+			replay(args, writer);
+			return;
+		}
+		// load [key=value ...]
+		if (args.length > 0 && args[0].equals("load")) {
+			load(args, writer);
+			return;
+		}
+		WorkloadRecorder.flush();
+		writer.println("prefetch: " + prefetcher);
+		writer.println("transfers: " + transfers);
+		MemoryGovernor.dump(writer);
+		CallerAccounting.dump(writer);
+		Tracer.dump(writer);
+		for (var root : roots) {
+			writer.println(root.rootUri + ": " +
+				root.executor.getReconnectStats());
+			writer.print(root.executor.getAdmissionStats());
+		}
+	}
+
+	private void load(String[] args, PrintWriter writer) {
+		var options = new HashMap<String, String>();
+		for (var arg : Arrays.asList(args).subList(1, args.length)) {
+			var kv = arg.split("=", 2);
+			if (kv.length == 2) {
+				options.put(kv[0], kv[1]);
+			}
+		}
+		var root = LoadGenerator.newTestRoot(cr, AUTHORITY,
+			getContext().getCacheDir());
+		testRoot = root;
+		try {
+			new LoadGenerator(this, AUTHORITY, this::ioHandlerOf).run(root,
+				LoadGenerator.Options.parse(options), writer);
+			writer.print(root.rootUri + ":\n" +
+				root.executor.getAdmissionStats());
+		} catch (IOException|RuntimeException e) {
+			writer.println("load: " + e);
+		} finally {
+			testRoot = null;
+			root.close();
+			root.store.clear();
+		}
+	}
+
+	private void replay(String[] args, PrintWriter writer) {
+		if (WorkloadRecorder.isRecording()) {
+			writer.println("stop recording first");
+			return;
+		}
+		var log = args.length > 1 ? new File(args[1]) : getWorkloadFile();
+		long latency, jitter;
+		try {
+			latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+			jitter = args.length > 3 ? Long.parseLong(args[3]) : 0;
+		} catch (NumberFormatException e) {
+			writer.println("replay: " + e);
+			return;
+		}
+		if (latency < 0 || jitter < 0) {
+			writer.println("replay: negative latency or jitter");
+			return;
+		}
+		var fake = new FakeCephMount("replay");
+		var root = fake.newRoot(cr, AUTHORITY, getContext().getCacheDir());
+		testRoot = root;
+		try {
+			new WorkloadReplayer(this, AUTHORITY, root, fake).replay(log,
+				latency, jitter, writer);
+		} catch (IOException|RuntimeException e) {
+			writer.println("replay: " + e);
+		} finally {
+			testRoot = null;
+			root.close();
+			root.store.clear();
+		}
+	}
+
+	private File getWorkloadFile() {
+		return new File(getContext().getFilesDir(), "workload.tsv");
 	}
 
 	@Override
 	public Bundle getDocumentMetadata(String documentId, String mimeType)
 			throws FileNotFoundException {
+		var previousRoot = enterRoot(documentId);
+		var previousCaller = CallerAccounting.enterCaller(getCallingPackage());
+		var previous = CephFSExecutor.setPriority(
+			CephFSExecutor.Priority.BACKGROUND);
+		var section = Tracer.section("getDocumentMetadata", documentId);
+		var start = System.nanoTime();
+		try {
+			return getDocumentMetadataPrioritized(documentId, mimeType);
+		} finally {
+			section.close();
+			WorkloadRecorder.record("getDocumentMetadata", documentId, null,
+				start);
+			CephFSExecutor.setPriority(previous);
+			CallerAccounting.restoreCaller(previousCaller);
+			restoreRoot(previousRoot);
+		}
+	}
+
+	@Override
+	public String getDocumentType(String documentId)
+			throws FileNotFoundException {
+		var previous = enterRoot(documentId);
+		try {
+			return super.getDocumentType(documentId);
+		} finally {
+			restoreRoot(previous);
+		}
+	}
+
+	private Bundle getDocumentMetadataPrioritized(String documentId,
+			String mimeType) throws FileNotFoundException {
+		var path = pathFromDocumentId(documentId);
+		if (SnapshotCache.isInSnapshot(path) &&
+				memberFromDocumentId(documentId) == null) {
+			var cached = root().snapshots.getMetadata(path);
+			if (cached == null) {
+				cached = getDocumentMetadataUncached(documentId, mimeType);
+				if (cached != null) {
+					root().snapshots.putMetadata(path, cached);
+				}
+			}
+			return cached;
+		}
+		return getDocumentMetadataUncached(documentId, mimeType);
+	}
+
+	private Bundle getDocumentMetadataUncached(String documentId,
+			String mimeType) throws FileNotFoundException {
+		if (mimeType.equals(Document.MIME_TYPE_DIR) &&
+				(memberFromDocumentId(documentId) != null ||
+					isBrowsableArchive(pathFromDocumentId(documentId)))) {
+			return null;
+		}
 		if (mimeType.equals(Document.MIME_TYPE_DIR)) {
 			// DocumentsUI does not show this though
 			var metadata = new Bundle();
 			var path = pathFromDocumentId(documentId);
+			StatsService.DirStats dirStats;
+			try {
+				dirStats = root().stats.get(root().executor, root().keys.keyOf(path), path);
+			} catch (FileNotFoundException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 
 			metadata.putLong(DocumentsContract.METADATA_TREE_COUNT,
-				getXattrULL(path, "ceph.dir.rentries"));
+				dirStats.entries());
 			metadata.putLong(DocumentsContract.METADATA_TREE_SIZE,
-				getXattrULL(path, "ceph.dir.rbytes"));
+				dirStats.bytes());
 			return metadata;
 		}
 		return super.getDocumentMetadata(documentId, mimeType);
@@ -459,32 +1621,56 @@ public class CephFSDocumentsProvider extends AbstractUnixLikeDocumentsProvider {
 	@Override
 	public Cursor queryRoots(String[] projection)
 			throws FileNotFoundException {
+		var current = roots;
 		MatrixCursor result = new MatrixCursor(
-			projection != null ? projection : DEFAULT_ROOT_PROJECTION, 1);
-		CephStatVFS csvfs = new CephStatVFS();
-		executor.executeWithUncheckedOrFNF(cm -> {
-			cm.statfs(".", csvfs);
-			return null;
-		});
+			projection != null ? projection : DEFAULT_ROOT_PROJECTION,
+			current.size());
+		// in parallel, a stuck cluster costs at most one timeout
+		var pending = new ArrayList<Future<CephStatVFS>>();
+		for (var root : current) {
+			pending.add(rootQuerier.submit(
+				() -> root.stats.statfs(root.executor)));
+		}
+		var deadline = System.currentTimeMillis() + ROOT_STATFS_TIMEOUT;
+		for (int i = 0; i < current.size(); i++) {
+			var root = current.get(i);
+			CephStatVFS csvfs = null;
+			try {
+				csvfs = pending.get(i).get(Math.max(0,
+					deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				Log.w(APP_NAME, "statfs " + root.rootUri + " timed out");
+			} catch (ExecutionException e) {
+				Log.w(APP_NAME, "statfs " + root.rootUri, e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			addRootRow(result, root, csvfs);
+		}
+		return result;
+	}
 
-		var rootUri = executor.config.getRootUri().toString();
+	// capacity left out if unknown
+	private void addRootRow(MatrixCursor result, CephFSRoot root,
+			CephStatVFS csvfs) {
 		MatrixCursor.RowBuilder row = result.newRow();
 		for (var col : result.getColumnNames()) {
 			row.add(switch (col) {
-			case Root.COLUMN_ROOT_ID -> rootUri;
-			case Root.COLUMN_DOCUMENT_ID -> rootUri;
+			case Root.COLUMN_ROOT_ID -> root.rootUri;
+			case Root.COLUMN_DOCUMENT_ID -> root.rootUri;
 			case Root.COLUMN_FLAGS -> Root.FLAG_SUPPORTS_CREATE | Root.FLAG_SUPPORTS_IS_CHILD;
-			case Root.COLUMN_TITLE -> executor.config.getTitle();
+			case Root.COLUMN_TITLE -> root.executor.config.getTitle();
 			case Root.COLUMN_ICON -> R.mipmap.sym_def_app_icon;
 			// DocumentsUI shows localized and humanized COLUMN_AVAILABLE_BYTES
 			// when summary is not present, which is more useful and nicer
-			// case Root.COLUMN_SUMMARY -> executor.config.getSummary();
-			case Root.COLUMN_CAPACITY_BYTES -> csvfs.blocks * csvfs.frsize;
-			case Root.COLUMN_AVAILABLE_BYTES -> csvfs.bavail * csvfs.frsize;
+			// case Root.COLUMN_SUMMARY -> root.executor.config.getSummary();
+			case Root.COLUMN_CAPACITY_BYTES ->
+				csvfs == null ? null : csvfs.blocks * csvfs.frsize;
+			case Root.COLUMN_AVAILABLE_BYTES ->
+				csvfs == null ? null : csvfs.bavail * csvfs.frsize;
 			default -> null;
 			});
 		}
-		return result;
 	}
 }
 
@@ -0,0 +1,31 @@
+package link.xdavidwu.saf.cephfs;
+
+import java.io.IOException;
+
+/*
+ * IOException from libcephfs_jni with errno resolved, once, when leaving
+ * CephFSExecutor
+ *
+ * libcephfs_jni only has typed exceptions for ENOENT, ENOTDIR and EEXIST,
+ * and carries errno of others as strerror() message.
+ */
+public class CephFSErrnoException extends IOException {
+	private final int errno;
+	private final boolean retryable;
+
+	protected CephFSErrnoException(int errno, boolean retryable,
+			IOException cause) {
+		super(cause.getMessage(), cause);
+		this.errno = errno;
+		this.retryable = retryable;
+	}
+
+	protected int getErrno() {
+		return errno;
+	}
+
+	// may be from losing the session, worth a remount and a replay
+	protected boolean isRetryable() {
+		return retryable;
+	}
+}
@@ -4,25 +4,48 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.system.ErrnoException;
 import android.system.OsConstants;
+import android.util.Log;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
+import com.ceph.fs.CephFileAlreadyExistsException;
 import com.ceph.fs.CephMount;
+import com.ceph.fs.CephNotDirectoryException;
+import com.ceph.fs.CephStatVFS;
 
 public class CephFSExecutor {
-	protected record CephMountConfig(
-			String id, String path, Map<String, Object> config) {
+	/*
+	 * pathInUri tells apart roots of the same cluster and user, left out for
+	 * the first root to keep document IDs granted before there were more
+	 */
+	protected record CephMountConfig(String id, String path,
+			Map<String, Object> config, boolean pathInUri) {
 
 		protected Uri getRootUri() {
 			var builder = new Uri.Builder();
-			var uri = builder.scheme("cephfs").authority(id + "@" + config.get("mon_host")).build();
+			var user = pathInUri ? id + ";" + path : id;
+			var uri = builder.scheme("cephfs").authority(user + "@" + config.get("mon_host")).build();
 			return uri;
 		}
 
@@ -36,7 +59,12 @@ public class CephFSExecutor {
 	}
 
 	protected CephMountConfig config;
+	private static final String LOG_NAME = "CephFSExecutor";
+
 	private CephMount cm;
+	private final Object mountLock = new Object();
+	// by the one thread remounting, which does not hold mountLock meanwhile
+	private boolean remounting = false;
 
 	protected CephFSExecutor(CephMountConfig config) {
 		this.config = config;
@@ -61,6 +89,8 @@ public class CephFSExecutor {
 	 * and delete where there are no matching OsConstants
 	 * OsConstants are not compile-time const, but initialized at runtime via initConstants jni call
 	 */
+	// not in OsConstants, the same on all Linux ABIs
+	private static final int ESHUTDOWN = 108;
 	private static Map<String, Integer> strerrorT = new HashMap<String, Integer>();
 	static {
 		strerrorT.put("Operation not permitted", OsConstants.EPERM);
@@ -143,36 +173,541 @@ public class CephFSExecutor {
 		strerrorT.put("Stale NFS file handle", OsConstants.ESTALE);
 		strerrorT.put("Quota exceeded", OsConstants.EDQUOT);
 		strerrorT.put("Operation Canceled", OsConstants.ECANCELED);
+		// also how blocklisting shows up
+		strerrorT.put("Cannot send after transport endpoint shutdown", ESHUTDOWN);
 	}
-	private static int cephIOEToOsConstants(IOException e) {
+	// typed ones first, to skip string hashing on frequent ENOENT
+	protected static int errnoOf(IOException e) {
+		if (e instanceof CephFSErrnoException ce) {
+			return ce.getErrno();
+		} else if (e instanceof FileNotFoundException) {
+			return OsConstants.ENOENT;
+		} else if (e instanceof CephNotDirectoryException) {
+			return OsConstants.ENOTDIR;
+		} else if (e instanceof CephFileAlreadyExistsException) {
+			return OsConstants.EEXIST;
+		}
 		var errno = strerrorT.get(e.getMessage());
 		return errno == null ? OsConstants.EIO : errno;
 	}
 
-	protected <T> T execute(Operation<T> op) throws IOException {
-		if (cm == null) {
-			cm = this.mount.execute(null);
+	private static boolean isRetryable(int errno) {
+		return errno == ESHUTDOWN || errno == OsConstants.ENOTCONN ||
+			errno == OsConstants.ETIMEDOUT || errno == OsConstants.ECONNRESET ||
+			errno == OsConstants.ECONNABORTED;
+	}
+
+	/*
+	 * Resolves errno of plain IOException from libcephfs_jni, once, others
+	 * are either typed already or thrown by ops themselves
+	 */
+	private static IOException classify(IOException e) {
+		if (e.getClass() != IOException.class) {
+			return e;
+		}
+		var errno = errnoOf(e);
+		return new CephFSErrnoException(errno, isRetryable(errno), e);
+	}
+
+	protected static String getxattrString(CephMount cm, String path,
+			String name) throws IOException {
+		var buf = new byte[32];
+		var l = (int) cm.getxattr(path, name, buf);
+		return new String(buf, 0, l);
+	}
+
+	/*
+	 * Operations are admitted by class, each with bounded concurrency, and
+	 * a class only starts new operations when no class before it is waiting.
+	 * Within a class, apps with fewer operations running here go first.
+	 * PREFETCH is dropped instead of waiting.
+	 */
+	protected enum Priority {
+		INTERACTIVE(8),
+		DATA(4),
+		PREFETCH(4),
+		BACKGROUND(2);
+
+		private final int limit;
+
+		Priority(int limit) {
+			this.limit = limit;
+		}
+	}
+
+	// thrown for PREFETCH operations under pressure
+	protected static class DroppedException extends IOException {
+		protected DroppedException() {
+			super("dropped under pressure");
+		}
+	}
+
+	private static final ThreadLocal<Priority> priority =
+		ThreadLocal.withInitial(() -> Priority.INTERACTIVE);
+
+	private static final ThreadLocal<CancellationSignal> cancellation =
+		new ThreadLocal<>();
+	/*
+	 * By WorkloadReplayer and LoadGenerator, to stand in for a slower
+	 * cluster; of this executor only, reset by them when done
+	 */
+	private volatile long injectedLatency = 0, injectedJitter = 0;
+
+	private final int[] running = new int[Priority.values().length];
+	private final int[] waiting = new int[Priority.values().length];
+	private boolean closed = false;
+	// by calling app, entries dropped once back to zero
+	private final HashMap<String, Integer> runningBy = new HashMap<>();
+	private final HashMap<String, int[]> waitingBy = new HashMap<>();
+
+	/*
+	 * Sets priority of operations from this thread without explicit one,
+	 * returns the previous one for restoring
+	 */
+	protected static Priority setPriority(Priority p) {
+		var previous = priority.get();
+		priority.set(p);
+		return previous;
+	}
+
+	protected static Priority getPriority() {
+		return priority.get();
+	}
+
+	/*
+	 * Makes operations from this thread fail with OperationCanceledException
+	 * once signal is canceled, including ones waiting for admission. null
+	 * keeps the current one, as nested calls often pass none. Returns the
+	 * previous one for restoreCancellationSignal.
+	 */
+	protected static CancellationSignal enterCancellationSignal(
+			CancellationSignal signal) {
+		var previous = cancellation.get();
+		if (signal != null) {
+			cancellation.set(signal);
+		}
+		return previous;
+	}
+
+	protected static void restoreCancellationSignal(CancellationSignal signal) {
+		cancellation.set(signal);
+	}
+
+	protected static void throwIfCanceled() {
+		var signal = cancellation.get();
+		if (signal != null) {
+			signal.throwIfCanceled();
+		}
+	}
+
+	private boolean anyWaitingBefore(Priority p) {
+		for (int i = 0; i < p.ordinal(); i++) {
+			if (waiting[i] > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean anyLessBusyWaiting(Priority p, String caller) {
+		var busy = runningBy.getOrDefault(caller, 0);
+		for (var e : waitingBy.entrySet()) {
+			if (e.getValue()[p.ordinal()] > 0 && !e.getKey().equals(caller) &&
+					runningBy.getOrDefault(e.getKey(), 0) < busy) {
+				return true;
+			}
 		}
+		return false;
+	}
+
+	private void updateWaitingBy(String caller, Priority p, int delta) {
+		var w = waitingBy.computeIfAbsent(caller,
+			k -> new int[Priority.values().length]);
+		w[p.ordinal()] += delta;
+		if (Arrays.stream(w).allMatch(n -> n == 0)) {
+			waitingBy.remove(caller);
+		}
+	}
+
+	private void acquire(Priority p, String caller) throws IOException {
+		acquire(p, caller, cancellation.get());
+	}
+
+	/*
+	 * Cancellation is polled, as a CancellationSignal holds one listener,
+	 * which belongs to whoever passed it in
+	 */
+	private synchronized void acquire(Priority p, String caller,
+			CancellationSignal signal) throws IOException {
+		var i = p.ordinal();
+		if (closed) {
+			throw new IOException("root removed");
+		}
+		if (p == Priority.PREFETCH &&
+				(running[i] >= p.limit || anyWaitingBefore(p))) {
+			throw new DroppedException();
+		}
+		waiting[i]++;
+		updateWaitingBy(caller, p, 1);
 		try {
+			while (running[i] >= p.limit || anyWaitingBefore(p) ||
+					anyLessBusyWaiting(p, caller)) {
+				if (signal != null && signal.isCanceled()) {
+					// let others behind us in
+					notifyAll();
+					throw new OperationCanceledException();
+				}
+				if (signal != null) {
+					wait(CANCEL_POLL);
+				} else {
+					wait();
+				}
+				if (closed) {
+					throw new IOException("root removed");
+				}
+			}
+			if (signal != null && signal.isCanceled()) {
+				notifyAll();
+				throw new OperationCanceledException();
+			}
+		} catch (InterruptedException e) {
+			notifyAll();
+			throw new InterruptedIOException();
+		} finally {
+			waiting[i]--;
+			updateWaitingBy(caller, p, -1);
+		}
+		running[i]++;
+		runningBy.merge(caller, 1, Integer::sum);
+		// others held back for us may go now, if there is still room
+		notifyAll();
+	}
+
+	// how long shutdown waits for running operations before unmounting
+	private static final long DRAIN_TIMEOUT = 30000;
+
+	/*
+	 * Fails operations from now on, and unmounts once those running are
+	 * done, on retirer as it may block for long
+	 */
+	protected void shutdown() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		retirer.submit(() -> {
+			var deadline = SystemClock.elapsedRealtime() + DRAIN_TIMEOUT;
+			synchronized (this) {
+				long left;
+				while (Arrays.stream(running).anyMatch(n -> n > 0) &&
+						(left = deadline - SystemClock.elapsedRealtime()) > 0) {
+					try {
+						wait(left);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			CephMount m;
+			synchronized (mountLock) {
+				m = cm;
+				cm = null;
+			}
+			if (m != null) {
+				try {
+					m.unmount();
+				} catch (RuntimeException e) {
+					Log.w(LOG_NAME, "unmount", e);
+				}
+			}
+		});
+	}
+
+	private synchronized void release(Priority p, String caller) {
+		running[p.ordinal()]--;
+		runningBy.computeIfPresent(caller, (k, n) -> n == 1 ? null : n - 1);
+		notifyAll();
+	}
+
+	protected <T> T execute(Operation<T> op) throws IOException {
+		return execute(priority.get(), op);
+	}
+
+	protected <T> T execute(Priority p, Operation<T> op) throws IOException {
+		return execute(p, CallerAccounting.getCaller(), op);
+	}
+
+	// for work on behalf of an app from other threads, like read-ahead
+	protected <T> T execute(Priority p, String caller, Operation<T> op)
+			throws IOException {
+		try (var section = Tracer.section("execute", p.name())) {
+			var start = SystemClock.elapsedRealtime();
+			acquire(p, caller);
+			admissions[p.ordinal()].record(SystemClock.elapsedRealtime() - start);
+			CallerAccounting.begin(caller);
+			try {
+				return executeAdmitted(op);
+			} finally {
+				CallerAccounting.end(caller);
+				release(p, caller);
+			}
+		}
+	}
+
+	// admitted classes run concurrently, apart from admission
+	private CephMount getMount() throws IOException {
+		synchronized (mountLock) {
+			awaitRemount();
+			if (cm == null) {
+				cm = this.mount.execute(null);
+			}
+			return cm;
+		}
+	}
+
+	/*
+	 * Things holding per-mount state, like fds, to be reopened right after
+	 * a remount instead of on their next use
+	 */
+	protected interface Reopenable {
+		void reopen(CephMount cm) throws IOException;
+	}
+
+	private final Set<Reopenable> reopenables =
+		Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private static final ExecutorService reopener =
+		Executors.newFixedThreadPool(4);
+	// and for unmounting broken mounts, which may block for long
+	private static final ExecutorService retirer =
+		Executors.newSingleThreadExecutor();
+
+	protected void register(Reopenable r) {
+		reopenables.add(r);
+	}
+
+	protected void unregister(Reopenable r) {
+		reopenables.remove(r);
+	}
+
+	// ops which may have taken effect when failing, not to be replayed
+	private static class Once<T> implements Operation<T> {
+		private final Operation<T> op;
+
+		private Once(Operation<T> op) {
+			this.op = op;
+		}
+
+		@Override
+		public T execute(CephMount cm) throws IOException {
 			return op.execute(cm);
+		}
+	}
+
+	protected static <T> Operation<T> once(Operation<T> op) {
+		return new Once<>(op);
+	}
+
+	private static final long MIN_BACKOFF = 100, MAX_BACKOFF = 5000,
+		RECONNECT_DEADLINE = 30000;
+	// how often waits check for cancellation
+	private static final long CANCEL_POLL = 100;
+
+	private final LatencyRecorder reconnects = new LatencyRecorder(64);
+	// from the failure to the replayed op finishing
+	private final LatencyRecorder stalls = new LatencyRecorder(256);
+
+	protected String getReconnectStats() {
+		return "reconnects: " + reconnects + "\nstalls: " + stalls;
+	}
+
+	// time spent waiting to be admitted, per priority
+	private final LatencyRecorder[] admissions =
+		Arrays.stream(Priority.values()).map(p -> new LatencyRecorder(1024))
+			.toArray(LatencyRecorder[]::new);
+
+	protected synchronized String getAdmissionStats() {
+		var sb = new StringBuilder();
+		for (var p : Priority.values()) {
+			sb.append("admission " + p + ": " + admissions[p.ordinal()] +
+				", running " + running[p.ordinal()] + ", waiting " +
+				waiting[p.ordinal()] + "\n");
+		}
+		sb.append("running by app: " + runningBy + "\n");
+		return sb.toString();
+	}
+
+	private static boolean isHealthy(CephMount m) {
+		try {
+			m.statfs("/", new CephStatVFS());
+			return true;
+		} catch (IOException|RuntimeException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * One remount shared by all failing ops, retried with exponential
+	 * backoff, then reopening registered fds in parallel
+	 */
+	// with mountLock held, released while waiting
+	private void awaitRemount() throws IOException {
+		while (remounting) {
+			throwIfCanceled();
+			try {
+				mountLock.wait(CANCEL_POLL);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private static void sleepCancellable(long millis) throws IOException {
+		var deadline = SystemClock.elapsedRealtime() + millis;
+		long left;
+		while ((left = deadline - SystemClock.elapsedRealtime()) > 0) {
+			throwIfCanceled();
+			try {
+				Thread.sleep(Math.min(left, CANCEL_POLL));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private CephMount remount(CephMount broken) throws IOException {
+		synchronized (mountLock) {
+			awaitRemount();
+			if (cm != broken && cm != null) {
+				return cm;
+			}
+			cm = null;
+			remounting = true;
+		}
+		var start = SystemClock.elapsedRealtime();
+		CephMount fresh = null;
+		try {
+			retirer.submit(() -> {
+				try {
+					broken.unmount();
+				} catch (RuntimeException e) {
+					Log.w(LOG_NAME, "unmount", e);
+				}
+			});
+			var backoff = MIN_BACKOFF;
+			while (true) {
+				try {
+					var m = this.mount.execute(null);
+					if (!isHealthy(m)) {
+						retirer.submit(m::unmount);
+						throw new IOException("unhealthy after mount");
+					}
+					fresh = m;
+					break;
+				} catch (IOException e) {
+					var elapsed = SystemClock.elapsedRealtime() - start;
+					if (elapsed + backoff > RECONNECT_DEADLINE) {
+						Log.e(LOG_NAME, "reconnect failed after " + elapsed + "ms", e);
+						throw e;
+					}
+					Log.w(LOG_NAME, "reconnect, retrying in " + backoff + "ms", e);
+					// without mountLock, others waiting may give up
+					sleepCancellable(backoff);
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				}
+			}
+			reopenAll(fresh);
+			reconnects.record(SystemClock.elapsedRealtime() - start);
+			return fresh;
+		} finally {
+			synchronized (mountLock) {
+				cm = fresh;
+				remounting = false;
+				mountLock.notifyAll();
+			}
+		}
+	}
+
+	private void reopenAll(CephMount m) {
+		var futures = new ArrayList<Future<?>>();
+		for (var r : reopenables) {
+			futures.add(reopener.submit(() -> {
+				r.reopen(m);
+				return null;
+			}));
+		}
+		for (var f : futures) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				// retried on next use
+				Log.w(LOG_NAME, "reopen", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// returns the previous value, to be restored
+	protected long setInjectedLatency(long millis) {
+		var previous = injectedLatency;
+		injectedLatency = millis;
+		return previous;
+	}
+
+	// up to this much more on top of injected latency, uniformly
+	protected long setInjectedJitter(long millis) {
+		var previous = injectedJitter;
+		injectedJitter = millis;
+		return previous;
+	}
+
+	private <T> T executeAdmitted(Operation<T> op) throws IOException {
+		var current = getMount();
+		var injected = injectedLatency + (injectedJitter > 0 ?
+			ThreadLocalRandom.current().nextLong(injectedJitter + 1) : 0);
+		if (injected > 0) {
+			SystemClock.sleep(injected);
+		}
+		try {
+			return op.execute(current);
 		} catch (IOException e) {
-			// ESHUTDOWN
-			if (e.getMessage().equals("Cannot send after transport endpoint shutdown")) {
-				cm.unmount();
-				cm = this.mount.execute(null);
-				return op.execute(cm);
-			} else {
-				throw e;
+			var classified = classify(e);
+			// others than ESHUTDOWN may be from this op alone
+			if (!(classified instanceof CephFSErrnoException ce) ||
+					!ce.isRetryable() ||
+					ce.getErrno() != ESHUTDOWN && isHealthy(current)) {
+				throw classified;
+			}
+			var start = SystemClock.elapsedRealtime();
+			CephMount fresh;
+			try (var section = Tracer.section("remount", config.getTitle())) {
+				fresh = remount(current);
+			}
+			if (op instanceof Once) {
+				throw classified;
+			}
+			try {
+				var result = op.execute(fresh);
+				stalls.record(SystemClock.elapsedRealtime() - start);
+				return result;
+			} catch (IOException replayed) {
+				throw classify(replayed);
 			}
 		}
 	}
 
+	protected static ErrnoException toErrnoException(String functionName,
+			IOException e) {
+		return new ErrnoException(functionName, errnoOf(e));
+	}
+
 	protected <T> T executeWithErrnoException(
 			String functionName, Operation<T> op) throws ErrnoException {
 		try {
 			return execute(op);
 		} catch (IOException e) {
-			throw new ErrnoException(functionName, cephIOEToOsConstants(e));
+			throw toErrnoException(functionName, e);
 		}
 	}
 
@@ -3,77 +3,327 @@ package link.xdavidwu.saf.cephfs;
 import android.os.ProxyFileDescriptorCallback;
 import android.system.ErrnoException;
 import android.system.OsConstants;
+import android.util.Log;
 
 import java.io.IOException;
 
 import com.ceph.fs.CephMount;
 import com.ceph.fs.CephStat;
 
-public class CephFSProxyFileDescriptorCallback extends ProxyFileDescriptorCallback {
+public class CephFSProxyFileDescriptorCallback extends ProxyFileDescriptorCallback
+		implements CephFSExecutor.Reopenable {
+	private static final String LOG_NAME = "CephFSProxyFileDescriptorCallback";
+	private static final int O_ACCMODE =
+		CephMount.O_RDONLY | CephMount.O_WRONLY | CephMount.O_RDWR;
+
 	private CephFSExecutor executor;
 	private CephMount cm;
 	private String path;
-	private int fd, mode;
+	// mode for reopening, without O_TRUNC
+	private int fd, mode, access;
+	// appends go after what was there on open
+	private long base = 0;
+	// of writable ones, as we are the one changing it; -1 until known
+	private long size;
+	private StripedReader reader;
+	private StripedWriter writer;
+	private SnapshotCache snapshots;
+	private ContainerPrefetcher containers;
+	private CephFSExecutor.Priority priority;
+	private String caller;
 
 	public CephFSProxyFileDescriptorCallback(
 			CephFSExecutor executor, CephMount cm, int fd,
-			String path, int mode) {
+			String path, int flags, long size, TransferEngine engine,
+			SnapshotCache snapshots, CephFSExecutor.Priority priority,
+			String mimeType, String caller) {
 		this.cm = cm;
 		this.fd = fd;
 		this.executor = executor;
 		this.path = path;
-		this.mode = mode;
+		this.mode = flags & ~CephMount.O_TRUNC;
+		this.access = flags & O_ACCMODE;
+		this.size = access == CephMount.O_RDONLY ? -1 : size;
+		if ((flags & CephMount.O_APPEND) != 0) {
+			base = size;
+		}
+		this.snapshots = snapshots;
+		this.priority = priority;
+		this.caller = caller;
+		if (access != CephMount.O_WRONLY) {
+			reader = new StripedReader(engine, readSource());
+			if (access == CephMount.O_RDONLY && snapshots == null &&
+					engine.isEnabled() &&
+					ContainerPrefetcher.isSupportedType(mimeType)) {
+				containers = new ContainerPrefetcher(engine, containerSource(),
+					mimeType);
+			}
+		} else if (engine.isWriteBehindEnabled()) {
+			// write-behind only where nothing reads back
+			writer = new StripedWriter(engine, writeSink());
+		}
+		executor.register(this);
+	}
+
+	private int stripeUnit() throws IOException {
+		return executor.execute(priority, caller, cm -> {
+			return Integer.parseInt(CephFSExecutor.getxattrString(
+				cm, path, "ceph.file.layout.stripe_unit"));
+		});
+	}
+
+	private StripedWriter.Sink writeSink() {
+		return new StripedWriter.Sink() {
+			@Override
+			public int write(long offset, byte[] buf, int size)
+					throws IOException {
+				return executor.execute(priority, caller, reopenIfNeeded(cm -> {
+					return cm.write(fd, buf, size, offset);
+				})).intValue();
+			}
+
+			@Override
+			public int blockSize() throws IOException {
+				return stripeUnit();
+			}
+		};
+	}
+
+	private StripedReader.Source readSource() {
+		return new StripedReader.Source() {
+			@Override
+			public int read(long offset, byte[] buf, int size)
+					throws IOException {
+				return executor.execute(priority, caller, reopenIfNeeded(cm -> {
+					return cm.read(fd, buf, size, offset);
+				})).intValue();
+			}
+
+			@Override
+			public int prefetch(long offset, byte[] buf, int size)
+					throws IOException {
+				return executor.execute(CephFSExecutor.Priority.PREFETCH,
+					caller, reopenIfNeeded(cm -> {
+						return cm.read(fd, buf, size, offset);
+					})).intValue();
+			}
+
+			@Override
+			public int blockSize() throws IOException {
+				return stripeUnit();
+			}
+		};
+	}
+
+	// speculative, as read-ahead
+	private ContainerPrefetcher.Source containerSource() {
+		var source = readSource();
+		return new ContainerPrefetcher.Source() {
+			@Override
+			public int read(long offset, byte[] buf, int size)
+					throws IOException {
+				return source.prefetch(offset, buf, size);
+			}
+
+			@Override
+			public long size() throws IOException {
+				var cs = new CephStat();
+				executor.execute(CephFSExecutor.Priority.PREFETCH, caller,
+					reopenIfNeeded(cm -> {
+						cm.fstat(fd, cs);
+						return null;
+					}));
+				return cs.size;
+			}
+		};
 	}
 
+	private <T> T execute(String functionName, CephFSExecutor.Operation<T> op)
+			throws ErrnoException {
+		try {
+			return executor.execute(priority, caller, op);
+		} catch (IOException e) {
+			throw CephFSExecutor.toErrnoException(functionName, e);
+		}
+	}
+
+	// before moving data, to keep to the rate of the app
+	private void meter(String functionName, int size, boolean write)
+			throws ErrnoException {
+		try {
+			CallerAccounting.meter(caller, size, write);
+		} catch (IOException e) {
+			throw CephFSExecutor.toErrnoException(functionName, e);
+		}
+	}
+
+	// by executor right after remount, or lazily if that failed
+	@Override
+	public synchronized void reopen(CephMount cm) throws IOException {
+		if (cm != this.cm) {
+			fd = cm.open(path, mode, 0);
+			this.cm = cm;
+		}
+	}
+
+	// may be called concurrently from read-ahead
 	private <T> CephFSExecutor.Operation<T> reopenIfNeeded(
 			CephFSExecutor.Operation<T> op) {
 		return cm -> {
-			if (cm != this.cm) {
-				fd = cm.open(path, mode, 0);
-				this.cm = cm;
-			};
+			reopen(cm);
 			return op.execute(cm);
 		};
 	};
 
 	@Override
 	public void onFsync() throws ErrnoException {
-		executor.executeWithErrnoException("fsync", cm -> {
-			if (cm == this.cm) {
-				cm.fsync(fd, false);
+		try (var section = Tracer.section("onFsync", path)) {
+			if (writer != null) {
+				try {
+					writer.flush();
+				} catch (IOException e) {
+					throw CephFSExecutor.toErrnoException("write", e);
+				}
 			}
-			return null;
-		});
+			execute("fsync", cm -> {
+				if (cm == this.cm) {
+					cm.fsync(fd, false);
+				}
+				return null;
+			});
+		}
 	}
 
 	@Override
 	public long onGetSize() throws ErrnoException {
-		CephStat cs = new CephStat();
-		executor.executeWithErrnoException("fstat", reopenIfNeeded(cm -> {
-			cm.fstat(fd, cs);
-			return null;
-		}));
-		return cs.size;
+		try (var section = Tracer.section("onGetSize", path)) {
+			if (size == -1) {
+				CephStat cs = new CephStat();
+				execute("fstat", reopenIfNeeded(cm -> {
+					cm.fstat(fd, cs);
+					return null;
+				}));
+				// others may still be writing to what we only read
+				if (access == CephMount.O_RDONLY) {
+					return cs.size;
+				}
+				size = cs.size;
+			}
+			var end = writer != null ? Math.max(size, writer.getEnd()) : size;
+			return end - base;
+		}
 	}
 
 	@Override
 	public int onRead(long offset, int size, byte[] data)
 		throws ErrnoException {
-		return executor.executeWithErrnoException("read", reopenIfNeeded(cm -> {
-			return cm.read(fd, data, size, offset);
-		})).intValue();
+		var start = System.nanoTime();
+		try (var section = Tracer.section("onRead", path)) {
+			meter("read", size, false);
+			if (snapshots != null) {
+				try {
+					return snapshots.read(path, offset, size, data, readSource());
+				} catch (IOException e) {
+					throw CephFSExecutor.toErrnoException("read", e);
+				}
+			}
+			if (containers != null) {
+				try {
+					var n = containers.read(offset, size, data);
+					if (n == size) {
+						return n;
+					} else if (n > 0) {
+						// past the range, into the start of the array
+						var rest = new byte[size - n];
+						var m = execute("read", reopenIfNeeded(cm -> {
+							return cm.read(fd, rest, rest.length, offset + n);
+						})).intValue();
+						System.arraycopy(rest, 0, data, n, Math.max(0, m));
+						return n + Math.max(0, m);
+					}
+				} catch (IOException e) {
+					throw CephFSExecutor.toErrnoException("read", e);
+				}
+			}
+			if (reader != null) {
+				try {
+					var n = reader.read(offset, size, data);
+					if (n != -1) {
+						return n;
+					}
+				} catch (IOException e) {
+					throw CephFSExecutor.toErrnoException("read", e);
+				}
+			}
+			return execute("read", reopenIfNeeded(cm -> {
+				return cm.read(fd, data, size, offset);
+			})).intValue();
+		} finally {
+			WorkloadRecorder.recordRead(path, offset, size, start);
+		}
 	}
 
 	@Override
 	public void onRelease() {
-		cm.close(fd);
+		try (var section = Tracer.section("onRelease", path)) {
+			if (reader != null) {
+				reader.invalidate();
+			}
+			if (containers != null) {
+				containers.release();
+			}
+			if (writer != null) {
+				try {
+					writer.flush();
+				} catch (IOException e) {
+					// nowhere to report, apps wanting to know should fsync;
+					// errors before that failed their writes already
+					Log.e(LOG_NAME, "write-behind: " + path, e);
+				}
+			}
+			executor.unregister(this);
+			try {
+				executor.execute(priority, caller, cm -> {
+					synchronized (this) {
+						// fds of broken mounts went with them
+						if (cm == this.cm) {
+							cm.close(fd);
+						}
+					}
+					return null;
+				});
+			} catch (IOException e) {
+				Log.e(LOG_NAME, "close: " + path, e);
+			}
+		}
 	}
 
 	@Override
 	public int onWrite(long offset, int size, byte[] data)
 		throws ErrnoException {
-		return executor.executeWithErrnoException("write", reopenIfNeeded(cm -> {
-			return cm.write(fd, data, size, offset);
-		})).intValue();
+		try (var section = Tracer.section("onWrite", path)) {
+			meter("write", size, true);
+			if (reader != null) {
+				reader.invalidate();
+			}
+			var at = base + offset;
+			if (writer != null) {
+				try {
+					var n = writer.write(at, size, data);
+					if (n != -1) {
+						return n;
+					}
+				} catch (IOException e) {
+					throw CephFSExecutor.toErrnoException("write", e);
+				}
+			}
+			var n = execute("write", reopenIfNeeded(cm -> {
+				return cm.write(fd, data, size, at);
+			})).intValue();
+			if (this.size != -1) {
+				this.size = Math.max(this.size, at + n);
+			}
+			return n;
+		}
 	}
 }
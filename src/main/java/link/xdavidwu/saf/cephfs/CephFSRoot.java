@@ -0,0 +1,78 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.content.ContentResolver;
+import android.util.LruCache;
+
+import java.io.File;
+
+import link.xdavidwu.saf.MemoryGovernor;
+
+/*
+ * A configured mount, with what we know of it
+ *
+ * Each root has its own executor, thus its own session and reconnects, so
+ * a stuck cluster does not hold up others.
+ */
+public class CephFSRoot {
+	// name and sizes, roughly
+	private static final int BYTES_PER_MEMBER = 128;
+
+	protected final CephFSExecutor executor;
+	protected final String rootUri;
+	protected final PathKeys keys = new PathKeys();
+	protected final ListingCache listings = new ListingCache();
+	protected final ChangeWatcher watcher;
+	protected final ContentCache contentCache = new ContentCache();
+	protected final StatsService stats = new StatsService();
+	protected final ListingStore store;
+	protected final SnapshotCache snapshots = new SnapshotCache();
+	// in number of members
+	protected final LruCache<String, ArchiveIndex> archives =
+			new LruCache<String, ArchiveIndex>(256 * 1024) {
+		protected int sizeOf(String key, ArchiveIndex value) {
+			return value.size() + 1;
+		}
+	};
+
+	protected CephFSRoot(CephFSExecutor.CephMountConfig config,
+			ContentResolver cr, String authority, File cacheDir) {
+		executor = new CephFSExecutor(config);
+		rootUri = config.getRootUri().toString();
+		watcher = new ChangeWatcher(cr, authority);
+		store = new ListingStore(new File(cacheDir,
+			"listings-" + Integer.toHexString(rootUri.hashCode())));
+		listings.register(rootUri);
+		snapshots.register(rootUri);
+		stats.register(rootUri);
+		MemoryGovernor.register(rootUri + ": archives", archives,
+			BYTES_PER_MEMBER);
+	}
+
+	protected boolean owns(String documentId) {
+		return documentId.startsWith(rootUri) &&
+			(documentId.length() == rootUri.length() ||
+				documentId.charAt(rootUri.length()) == '/' ||
+				documentId.charAt(rootUri.length()) == '#');
+	}
+
+	/*
+	 * On configuration changes, what we cached may be shown differently;
+	 * the store is kept, to survive process restarts
+	 */
+	protected void clear() {
+		listings.clear();
+		keys.clear();
+		snapshots.clear();
+		archives.evictAll();
+	}
+
+	protected void close() {
+		watcher.quit();
+		contentCache.quit();
+		executor.shutdown();
+		listings.unregister();
+		snapshots.unregister();
+		stats.unregister();
+		MemoryGovernor.unregister(archives);
+	}
+}
@@ -0,0 +1,204 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.content.ContentResolver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/*
+ * Polls ceph.dir.rctime of directories with open cursors, to notify
+ * DocumentsUI of changes made by other clients
+ *
+ * Intervals back off while nothing changes. rctime of a directory covers
+ * everything below it, so when a watched ancestor is unchanged, watched
+ * directories under it are known to be unchanged without asking the MDS.
+ */
+public class ChangeWatcher {
+	private static final String LOG_NAME = "ChangeWatcher";
+
+	private static final long MIN_INTERVAL = 2000, MAX_INTERVAL = 60000;
+	// bounds MDS load in the worst case
+	private static final int MAX_WATCHED = 32;
+
+	private class Watch {
+		private String documentId, path, rctime;
+		private int refs;
+		private long interval = MIN_INTERVAL, due;
+	}
+
+	private ContentResolver cr;
+	private String authority;
+	private Handler handler;
+	private CephFSExecutor executor;
+	private boolean enabled = false;
+	// sorted by path, for ancestors to be visited before descendants
+	private TreeMap<String, Watch> watches = new TreeMap<>();
+	private Runnable poll = this::poll;
+
+	public ChangeWatcher(ContentResolver cr, String authority) {
+		this.cr = cr;
+		this.authority = authority;
+		HandlerThread thread = new HandlerThread("Watcher thread",
+			Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	protected synchronized void configure(CephFSExecutor executor,
+			boolean enabled) {
+		this.executor = executor;
+		this.enabled = enabled;
+		watches.clear();
+		handler.removeCallbacks(poll);
+	}
+
+	protected void quit() {
+		handler.getLooper().quitSafely();
+	}
+
+	/*
+	 * Returns what to run when the cursor goes away, null if not watched
+	 */
+	protected synchronized Runnable watch(String documentId, String path,
+			String rctime) {
+		if (!enabled) {
+			return null;
+		}
+		var w = watches.get(path);
+		if (w == null) {
+			if (watches.size() >= MAX_WATCHED) {
+				return null;
+			}
+			w = new Watch();
+			w.documentId = documentId;
+			w.path = path;
+			watches.put(path, w);
+		}
+		w.refs++;
+		w.rctime = rctime;
+		w.interval = MIN_INTERVAL;
+		w.due = SystemClock.uptimeMillis() + MIN_INTERVAL;
+		schedule();
+
+		var watch = w;
+		var currentExecutor = executor;
+		return () -> unwatch(watch, currentExecutor);
+	}
+
+	private synchronized void unwatch(Watch w, CephFSExecutor owner) {
+		if (owner != executor || watches.get(w.path) != w) {
+			return;
+		}
+		if (--w.refs == 0) {
+			watches.remove(w.path);
+		}
+	}
+
+	private void schedule() {
+		handler.removeCallbacks(poll);
+		if (watches.isEmpty()) {
+			return;
+		}
+		var due = watches.values().stream().mapToLong(w -> w.due).min()
+			.getAsLong();
+		handler.postDelayed(poll, Math.max(0, due - SystemClock.uptimeMillis()));
+	}
+
+	private static boolean isUnder(String path, String ancestor) {
+		return path.startsWith(ancestor) && (ancestor.endsWith("/") ||
+			path.length() > ancestor.length() &&
+			path.charAt(ancestor.length()) == '/');
+	}
+
+	// seconds.nanoseconds
+	private static boolean isNotOlder(String rctime, String than) {
+		try {
+			return rctime != null && than != null &&
+				new BigDecimal(rctime).compareTo(new BigDecimal(than)) >= 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private void poll() {
+		ArrayList<Watch> snapshot;
+		CephFSExecutor currentExecutor;
+		synchronized (this) {
+			snapshot = new ArrayList<>(watches.values());
+			currentExecutor = executor;
+		}
+
+		var unchanged = new ArrayList<Watch>();
+		for (var w : snapshot) {
+			var now = SystemClock.uptimeMillis();
+			// only if what we know of it is as recent as the ancestor, which
+			// may have been watched after a change below
+			if (unchanged.stream().anyMatch(a -> isUnder(w.path, a.path) &&
+					isNotOlder(w.rctime, a.rctime))) {
+				backoff(w, now);
+				continue;
+			}
+			if (w.due > now) {
+				continue;
+			}
+
+			String rctime;
+			try {
+				rctime = currentExecutor.execute(
+						CephFSExecutor.Priority.BACKGROUND, cm -> {
+					return CephFSExecutor.getxattrString(cm, w.path,
+						"ceph.dir.rctime");
+				});
+			} catch (FileNotFoundException e) {
+				rctime = null;
+			} catch (IOException e) {
+				Log.w(LOG_NAME, "poll " + w.path, e);
+				backoff(w, now);
+				continue;
+			}
+
+			if (rctime != null && rctime.equals(w.rctime)) {
+				backoff(w, now);
+				unchanged.add(w);
+				continue;
+			}
+
+			synchronized (this) {
+				w.rctime = rctime;
+				w.interval = MIN_INTERVAL;
+				w.due = now + MIN_INTERVAL;
+				// our view of watched descendants is now outdated
+				for (var d : watches.tailMap(w.path, false).values()) {
+					if (isUnder(d.path, w.path)) {
+						d.due = now;
+					}
+				}
+			}
+			Log.v(LOG_NAME, "changed: " + w.path);
+			cr.notifyChange(DocumentsContract.buildChildDocumentsUri(
+				authority, w.documentId), null, 0);
+		}
+
+		synchronized (this) {
+			if (currentExecutor == executor) {
+				schedule();
+			}
+		}
+	}
+
+	private synchronized void backoff(Watch w, long now) {
+		if (w.due <= now) {
+			w.interval = Math.min(w.interval * 2, MAX_INTERVAL);
+			w.due = now + w.interval;
+		}
+	}
+}
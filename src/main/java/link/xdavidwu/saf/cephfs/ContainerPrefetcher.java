@@ -0,0 +1,373 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Fetches index structures of media containers right after opening, in
+ * parallel with the first reads, for players seeking to them next
+ *
+ * - MP4 and MOV: moov, wherever it is among top-level boxes
+ * - Matroska and WebM: Cues, as pointed to by SeekHead
+ * - MP3: the ID3v2 tag with the first frame after it, and the ID3v1 tag
+ *
+ * Fetches are speculative, at PREFETCH priority, and dropped under load.
+ * Fetched ranges serve reads starting in them, and are kept until the
+ * file is released, counted in the budget of TransferEngine until then,
+ * or until a fetch still running at release is done.
+ */
+public class ContainerPrefetcher {
+	private static final String LOG_NAME = "ContainerPrefetcher";
+	private static final int MAX_RANGE = 8 * 1024 * 1024;
+	private static final int MKV_HEAD_SIZE = 64 * 1024;
+	// for Xing or VBRI headers of the first frame
+	private static final int MP3_FIRST_FRAME = 4096;
+	private static final int MAX_MP4_BOXES = 32;
+
+	private static final int MKV_SEGMENT = 0x18538067,
+		MKV_SEEK_HEAD = 0x114D9B74, MKV_SEEK = 0x4DBB, MKV_SEEK_ID = 0x53AB,
+		MKV_SEEK_POSITION = 0x53AC, MKV_CUES = 0x1C53BB6B,
+		MKV_CLUSTER = 0x1F43B675;
+
+	protected interface Source {
+		// may throw CephFSExecutor.DroppedException
+		int read(long offset, byte[] buf, int size) throws IOException;
+
+		long size() throws IOException;
+	}
+
+	private enum Container { MP4, MATROSKA, MP3 }
+
+	private record Range(long offset, int length, Future<byte[]> data) {}
+
+	private TransferEngine engine;
+	private Source source;
+	private Container container;
+	private ArrayList<Range> ranges = new ArrayList<>();
+	private long reserved = 0;
+	private boolean released = false;
+
+	private static Container containerOf(String mimeType) {
+		return switch (mimeType) {
+		case "video/mp4", "audio/mp4", "video/quicktime", "video/3gpp" ->
+			Container.MP4;
+		case "video/x-matroska", "audio/x-matroska", "video/webm",
+			"audio/webm" -> Container.MATROSKA;
+		case "audio/mpeg" -> Container.MP3;
+		default -> null;
+		};
+	}
+
+	protected static boolean isSupportedType(String mimeType) {
+		return containerOf(mimeType) != null;
+	}
+
+	public ContainerPrefetcher(TransferEngine engine, Source source,
+			String mimeType) {
+		this.engine = engine;
+		this.source = source;
+		this.container = containerOf(mimeType);
+		engine.getPool().submit(() -> {
+			try {
+				locate();
+			} catch (IOException|RuntimeException e) {
+				Log.d(LOG_NAME, "locate", e);
+			}
+		});
+	}
+
+	private void locate() throws IOException {
+		var size = source.size();
+		switch (container) {
+		case MP4 -> locateMP4(size);
+		case MATROSKA -> locateMatroska(size);
+		case MP3 -> locateMP3(size);
+		}
+	}
+
+	private void locateMP4(long size) throws IOException {
+		long pos = 0;
+		for (int i = 0; i < MAX_MP4_BOXES && pos + 8 <= size; i++) {
+			var header = readFully(pos, 16);
+			if (header.length < 8) {
+				return;
+			}
+			long boxSize = readUInt(header, 0, 4);
+			var type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+			if (boxSize == 1) {
+				if (header.length < 16) {
+					return;
+				}
+				boxSize = readUInt(header, 8, 8);
+			} else if (boxSize == 0) {
+				boxSize = size - pos;
+			}
+			if (boxSize < 8) {
+				return;
+			}
+			if (type.equals("moov")) {
+				fetch(pos, Math.min(boxSize, size - pos));
+				return;
+			}
+			pos += boxSize;
+		}
+	}
+
+	private void locateMatroska(long size) throws IOException {
+		var head = fetch(0, Math.min(MKV_HEAD_SIZE, size));
+		if (head == null) {
+			return;
+		}
+		var cues = findCues(head);
+		if (cues < 0 || cues >= size) {
+			return;
+		}
+		var header = readFully(cues, 12);
+		var pos = new int[]{0};
+		if (readId(header, pos) != MKV_CUES) {
+			return;
+		}
+		var length = readSize(header, pos);
+		if (length > 0) {
+			fetch(cues, Math.min(pos[0] + length, size - cues));
+		}
+	}
+
+	// absolute position of Cues, -1 if not found in head
+	private static long findCues(byte[] head) {
+		var pos = new int[]{0};
+		long segment = -1;
+		while (pos[0] < head.length) {
+			var id = readId(head, pos);
+			var length = readSize(head, pos);
+			if (id < 0) {
+				return -1;
+			}
+			if (id == MKV_SEGMENT) {
+				// into the segment, sizes of which may be unknown
+				segment = pos[0];
+				continue;
+			}
+			if (id == MKV_CLUSTER) {
+				return -1;
+			}
+			if (length < 0 || pos[0] + length > head.length) {
+				return -1;
+			}
+			if (id == MKV_SEEK_HEAD && segment >= 0) {
+				return findCuesInSeekHead(head, pos[0],
+					pos[0] + (int) length, segment);
+			}
+			pos[0] += (int) length;
+		}
+		return -1;
+	}
+
+	private static long findCuesInSeekHead(byte[] head, int start, int end,
+			long segment) {
+		var pos = new int[]{start};
+		while (pos[0] < end) {
+			var id = readId(head, pos);
+			var length = readSize(head, pos);
+			if (id < 0 || length < 0) {
+				return -1;
+			}
+			var entryEnd = pos[0] + (int) length;
+			if (id == MKV_SEEK) {
+				long seekId = -1, seekPosition = -1;
+				while (pos[0] < entryEnd) {
+					var childId = readId(head, pos);
+					var childLength = readSize(head, pos);
+					if (childId < 0 || childLength < 0 || childLength > 8) {
+						return -1;
+					}
+					var value = readUInt(head, pos[0], (int) childLength);
+					if (childId == MKV_SEEK_ID) {
+						seekId = value;
+					} else if (childId == MKV_SEEK_POSITION) {
+						seekPosition = value;
+					}
+					pos[0] += (int) childLength;
+				}
+				if (seekId == MKV_CUES && seekPosition >= 0) {
+					return segment + seekPosition;
+				}
+			}
+			pos[0] = entryEnd;
+		}
+		return -1;
+	}
+
+	// EBML IDs keep their length marker
+	private static long readId(byte[] buf, int[] pos) {
+		if (pos[0] >= buf.length) {
+			return -1;
+		}
+		var length = Integer.numberOfLeadingZeros(buf[pos[0]] & 0xff) - 23;
+		if (length < 1 || length > 4 || pos[0] + length > buf.length) {
+			return -1;
+		}
+		var id = readUInt(buf, pos[0], length);
+		pos[0] += length;
+		return id;
+	}
+
+	// -1 for unknown, or malformed
+	private static long readSize(byte[] buf, int[] pos) {
+		if (pos[0] >= buf.length) {
+			return -1;
+		}
+		var length = Integer.numberOfLeadingZeros(buf[pos[0]] & 0xff) - 23;
+		if (length < 1 || length > 8 || pos[0] + length > buf.length) {
+			return -1;
+		}
+		// without the length marker
+		var mask = (1L << (7 * length)) - 1;
+		var value = readUInt(buf, pos[0], length) & mask;
+		pos[0] += length;
+		// all ones
+		return value == mask ? -1 : value;
+	}
+
+	private void locateMP3(long size) throws IOException {
+		if (size > 128) {
+			fetch(size - 128, 128);
+		}
+		var header = readFully(0, 10);
+		if (header.length < 10 || header[0] != 'I' || header[1] != 'D' ||
+				header[2] != '3') {
+			return;
+		}
+		// syncsafe
+		long tag = (header[6] & 0x7f) << 21 | (header[7] & 0x7f) << 14 |
+			(header[8] & 0x7f) << 7 | (header[9] & 0x7f);
+		tag += 10 + ((header[5] & 0x10) != 0 ? 10 : 0);
+		fetch(0, Math.min(tag + MP3_FIRST_FRAME, size));
+	}
+
+	private static long readUInt(byte[] buf, int offset, int length) {
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = value << 8 | (buf[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	// libcephfs_jni reads into the start of the array
+	private byte[] readFully(long offset, int length) throws IOException {
+		var buf = new byte[length];
+		var read = source.read(offset, buf, length);
+		if (read <= 0) {
+			return new byte[0];
+		}
+		if (read < length) {
+			var chunk = new byte[length - read];
+			while (read < length) {
+				var n = source.read(offset + read, chunk, length - read);
+				if (n <= 0) {
+					break;
+				}
+				System.arraycopy(chunk, 0, buf, read, n);
+				read += n;
+			}
+		}
+		return read == length ? buf : Arrays.copyOf(buf, read);
+	}
+
+	/*
+	 * Fetches a range for reads to come, returns its data if fetched here,
+	 * null if out of budget
+	 */
+	private byte[] fetch(long offset, long length) throws IOException {
+		if (length <= 0 || length > MAX_RANGE) {
+			return null;
+		}
+		var task = new FutureTask<byte[]>(
+			() -> readFully(offset, (int) length));
+		var range = new Range(offset, (int) length, task);
+		synchronized (this) {
+			if (released || !engine.tryReserve(length)) {
+				return null;
+			}
+			ranges.add(range);
+		}
+		task.run();
+		byte[] data = null;
+		Throwable failure = null;
+		try {
+			data = task.get();
+		} catch (InterruptedException e) {
+			failure = new InterruptedIOException();
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		}
+		synchronized (this) {
+			// not counted by release() while running
+			if (released || data == null) {
+				ranges.remove(range);
+				engine.release(length);
+			} else {
+				reserved += length;
+			}
+		}
+		if (failure instanceof IOException ioe) {
+			throw ioe;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+		return data;
+	}
+
+	/*
+	 * Returns -1 if not in a fetched range, for caller to read otherwise;
+	 * waits for ranges being fetched. May return less than size, where the
+	 * range ends, for caller to read the rest.
+	 */
+	protected int read(long offset, int size, byte[] data) throws IOException {
+		Range covering = null;
+		synchronized (this) {
+			for (var r : ranges) {
+				if (offset >= r.offset() &&
+						offset < r.offset() + r.length()) {
+					covering = r;
+					break;
+				}
+			}
+		}
+		if (covering == null) {
+			return -1;
+		}
+		byte[] buf;
+		try {
+			buf = covering.data().get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			return -1;
+		}
+		var start = (int) (offset - covering.offset());
+		var n = Math.min(size, buf.length - start);
+		if (n <= 0) {
+			// fetched short, as of a file that shrank; not EOF for certain
+			return -1;
+		}
+		System.arraycopy(buf, start, data, 0, n);
+		return n;
+	}
+
+	// of ranges fetched, one still being fetched returns its own
+	protected synchronized void release() {
+		released = true;
+		ranges.clear();
+		engine.release(reserved);
+		reserved = 0;
+	}
+}
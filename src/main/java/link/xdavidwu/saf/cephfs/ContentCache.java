@@ -0,0 +1,389 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.ceph.fs.CephMount;
+import com.ceph.fs.CephStat;
+
+/*
+ * On-device copies of whole files, for openDocument to hand out real file
+ * descriptors instead of going through the proxy
+ *
+ * Entries are validated against mtime and size from a stat of the remote
+ * file. Each entry is a data file with a random name and a .meta file with
+ * mtime, size and path, so the index survives the process being killed,
+ * and renames only rewrite .meta. Pinned paths are
+ * fetched ahead of time, never evicted, and served even if the cluster is
+ * unreachable; they are kept out of the cache directory, which the system
+ * may purge.
+ *
+ * Files are fetched a chunk per admitted operation, so a large one does
+ * not hold a BACKGROUND slot throughout. Loading, evicting and fetching
+ * all happen on one background thread, not on that configuring.
+ */
+public class ContentCache {
+	private static final String LOG_NAME = "ContentCache";
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	private record Entry(String path, long mtime, long size, File file) {}
+
+	private File dir, pinnedDir;
+	private long budget = 0, used = 0;
+	private Set<String> pinned = Collections.emptySet();
+	// access-ordered, for LRU
+	private LinkedHashMap<String, Entry> entries =
+		new LinkedHashMap<>(16, 0.75f, true);
+	private Set<String> filling = new HashSet<>();
+	private ExecutorService filler = Executors.newSingleThreadExecutor();
+
+	// pinnedDir may be null when nothing is pinned
+	protected void configure(File dir, File pinnedDir, long budget,
+			Set<String> pinned, CephFSExecutor executor) {
+		boolean moved;
+		File current;
+		synchronized (this) {
+			this.budget = budget;
+			this.pinned = pinned;
+			moved = !dir.equals(this.dir) ||
+				!Objects.equals(pinnedDir, this.pinnedDir);
+			if (moved) {
+				this.dir = dir;
+				this.pinnedDir = pinnedDir;
+				// until loaded again below
+				entries.clear();
+				used = 0;
+			}
+			current = this.dir;
+		}
+		filler.submit(() -> {
+			if (moved) {
+				load(current, pinnedDir);
+			}
+			synchronized (this) {
+				if (current != this.dir) {
+					return;
+				}
+				if (this.budget == 0) {
+					clear();
+					return;
+				}
+				relocate();
+				evict();
+				for (var path : this.pinned) {
+					if (!entries.containsKey(path)) {
+						fill(path, null, executor);
+					}
+				}
+			}
+		});
+	}
+
+	protected synchronized boolean isEnabled() {
+		return budget > 0;
+	}
+
+	// files being filled are left to finish
+	protected void quit() {
+		filler.shutdown();
+	}
+
+	// without the lock, only installed if still configured for the same
+	private void load(File dir, File pinnedDir) {
+		var loaded = new ArrayList<Entry>();
+		load(dir, loaded);
+		if (pinnedDir != null) {
+			load(pinnedDir, loaded);
+		}
+		// data files are touched on access
+		loaded.sort(Comparator.comparingLong(e -> e.file().lastModified()));
+		synchronized (this) {
+			if (dir != this.dir) {
+				return;
+			}
+			for (var e : loaded) {
+				entries.put(e.path(), e);
+				used += e.size();
+			}
+		}
+	}
+
+	private static void load(File dir, ArrayList<Entry> loaded) {
+		dir.mkdirs();
+		// left by fills interrupted by process death
+		var tmps = dir.listFiles((d, name) -> name.endsWith(".tmp"));
+		if (tmps != null) {
+			Arrays.stream(tmps).forEach(File::delete);
+		}
+		var metas = dir.listFiles((d, name) -> name.endsWith(".meta"));
+		if (metas == null) {
+			return;
+		}
+		for (var meta : metas) {
+			var data = new File(dir,
+				meta.getName().substring(0, meta.getName().length() - 5));
+			try {
+				var fields = new String(Files.readAllBytes(meta.toPath()),
+					StandardCharsets.UTF_8).split(" ", 3);
+				var e = new Entry(fields[2], Long.parseLong(fields[0]),
+					Long.parseLong(fields[1]), data);
+				if (!data.isFile() || data.length() != e.size()) {
+					throw new IOException("incomplete");
+				}
+				loaded.add(e);
+			} catch (IOException|RuntimeException e) {
+				meta.delete();
+				data.delete();
+			}
+		}
+	}
+
+	private static File metaOf(Entry e) {
+		return new File(e.file().getPath() + ".meta");
+	}
+
+	/*
+	 * Returns the local copy if still valid, null otherwise
+	 */
+	protected synchronized File lookup(String path, CephStat cs) {
+		var e = entries.get(path);
+		if (e == null) {
+			return null;
+		}
+		if (e.mtime() != cs.m_time || e.size() != cs.size) {
+			remove(e);
+			return null;
+		}
+		e.file().setLastModified(System.currentTimeMillis());
+		return e.file();
+	}
+
+	// for when the cluster is not reachable
+	protected synchronized File lookupOffline(String path) {
+		var e = entries.get(path);
+		return e != null && pinned.contains(path) ? e.file() : null;
+	}
+
+	protected synchronized void invalidate(String path) {
+		var e = entries.get(path);
+		if (e != null) {
+			remove(e);
+		}
+	}
+
+	private static void writeMeta(File meta, Entry e) throws IOException {
+		Files.write(meta.toPath(), (e.mtime() + " " + e.size() + " " + e.path())
+			.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// renamed through the provider, the content stays the same
+	protected synchronized void rename(String from, String to) {
+		invalidate(to);
+		var moved = new ArrayList<Entry>();
+		var it = entries.values().iterator();
+		while (it.hasNext()) {
+			var e = it.next();
+			if (e.path().equals(from) || e.path().startsWith(from + "/")) {
+				it.remove();
+				moved.add(e);
+			}
+		}
+		for (var e : moved) {
+			var renamed = new Entry(to + e.path().substring(from.length()),
+				e.mtime(), e.size(), e.file());
+			try {
+				writeMeta(metaOf(e), renamed);
+				invalidate(renamed.path());
+				entries.put(renamed.path(), renamed);
+			} catch (IOException ex) {
+				Log.w(LOG_NAME, "rename " + e.path(), ex);
+				used -= e.size();
+				metaOf(e).delete();
+				e.file().delete();
+			}
+		}
+		relocate();
+	}
+
+	private void remove(Entry e) {
+		entries.remove(e.path());
+		used -= e.size();
+		metaOf(e).delete();
+		e.file().delete();
+	}
+
+	// into or out of pinnedDir, as pins change, dropped if that fails
+	private void relocate() {
+		for (var e : new ArrayList<>(entries.values())) {
+			var target = pinnedDir != null && pinned.contains(e.path()) ?
+				pinnedDir : dir;
+			if (target.equals(e.file().getParentFile())) {
+				continue;
+			}
+			var data = new File(target, e.file().getName());
+			var moved = new Entry(e.path(), e.mtime(), e.size(), data);
+			if (e.file().renameTo(data) && metaOf(e).renameTo(metaOf(moved))) {
+				entries.put(e.path(), moved);
+			} else {
+				data.delete();
+				remove(e);
+			}
+		}
+	}
+
+	private void clear() {
+		new ArrayList<>(entries.values()).forEach(this::remove);
+	}
+
+	private void evict() {
+		var it = entries.values().iterator();
+		while (used > budget && it.hasNext()) {
+			var e = it.next();
+			if (pinned.contains(e.path())) {
+				continue;
+			}
+			it.remove();
+			used -= e.size();
+			metaOf(e).delete();
+			e.file().delete();
+		}
+	}
+
+	/*
+	 * Fetches the file in background if worth caching, cs may be null
+	 */
+	protected synchronized void fill(String path, CephStat cs,
+			CephFSExecutor executor) {
+		if (budget == 0 || filling.contains(path) ||
+				cs != null && !cs.isFile()) {
+			return;
+		}
+		// leave room for others, unless asked to keep it
+		if (cs != null && cs.size > budget / 4 && !pinned.contains(path)) {
+			return;
+		}
+		filling.add(path);
+		var currentDir = pinnedDir != null && pinned.contains(path) ?
+			pinnedDir : dir;
+		filler.submit(() -> {
+			try {
+				download(currentDir, path, executor);
+			} catch (IOException e) {
+				Log.w(LOG_NAME, "fill " + path, e);
+			} finally {
+				synchronized (this) {
+					filling.remove(path);
+				}
+			}
+		});
+	}
+
+	// an fd kept across chunks, on the mount it was opened on
+	private static class Remote {
+		private CephMount cm;
+		private int fd;
+		private CephStat cs;
+	}
+
+	// after remounts, as long as the file stays the same
+	private static void open(CephMount cm, Remote remote, String path)
+			throws IOException {
+		var fd = cm.open(path, CephMount.O_RDONLY, 0);
+		var cs = new CephStat();
+		try {
+			cm.fstat(fd, cs);
+		} catch (RuntimeException e) {
+			cm.close(fd);
+			throw e;
+		}
+		if (remote.cs != null && (cs.m_time != remote.cs.m_time ||
+				cs.size != remote.cs.size)) {
+			cm.close(fd);
+			throw new IOException("changed while filling");
+		}
+		remote.cm = cm;
+		remote.fd = fd;
+		remote.cs = cs;
+	}
+
+	private void download(File dir, String path, CephFSExecutor executor)
+			throws IOException {
+		var name = UUID.randomUUID().toString();
+		var tmp = new File(dir, name + ".tmp");
+		var remote = new Remote();
+		var buf = new byte[CHUNK_SIZE];
+		try (var out = new FileOutputStream(tmp)) {
+			long offset = 0;
+			while (remote.cs == null || offset < remote.cs.size) {
+				var at = offset;
+				var n = executor.execute(CephFSExecutor.Priority.BACKGROUND,
+						cm -> {
+					// fds of broken mounts went with them
+					if (cm != remote.cm) {
+						open(cm, remote, path);
+					}
+					return cm.read(remote.fd, buf, buf.length, at);
+				});
+				if (n <= 0) {
+					break;
+				}
+				out.write(buf, 0, n.intValue());
+				offset += n;
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			if (remote.cm != null) {
+				try {
+					executor.execute(CephFSExecutor.Priority.BACKGROUND, cm -> {
+						if (cm == remote.cm) {
+							cm.close(remote.fd);
+						}
+						return null;
+					});
+				} catch (IOException e) {
+					Log.w(LOG_NAME, "close " + path, e);
+				}
+			}
+		}
+
+		var cs = remote.cs;
+		synchronized (this) {
+			if (dir != this.dir && dir != this.pinnedDir || budget == 0 ||
+					cs == null || tmp.length() != cs.size) {
+				tmp.delete();
+				return;
+			}
+			invalidate(path);
+			var data = new File(dir, name);
+			var meta = new File(dir, name + ".meta");
+			writeMeta(meta, new Entry(path, cs.m_time, cs.size, data));
+			if (!tmp.renameTo(data)) {
+				meta.delete();
+				tmp.delete();
+				throw new FileNotFoundException("rename " + data);
+			}
+			entries.put(path, new Entry(path, cs.m_time, cs.size, data));
+			used += cs.size;
+			evict();
+		}
+	}
+}
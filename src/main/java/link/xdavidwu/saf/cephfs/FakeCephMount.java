@@ -0,0 +1,427 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.content.ContentResolver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.ceph.fs.CephFileAlreadyExistsException;
+import com.ceph.fs.CephMount;
+import com.ceph.fs.CephNotDirectoryException;
+import com.ceph.fs.CephStat;
+import com.ceph.fs.CephStatVFS;
+
+/*
+ * An in-memory stand-in for a cluster, for LoadGenerator and
+ * WorkloadReplayer
+ *
+ * Only the tree and sizes are kept: files read back as zeros. Errors are
+ * thrown as libcephfs_jni does, so CephFSExecutor maps them the same way.
+ * Nothing is ever mounted; the handle created is local.
+ */
+public class FakeCephMount extends CephMount {
+	private static final int S_IFDIR = 0040000, S_IFREG = 0100000;
+	private static final long STRIPE_UNIT = 4 * 1024 * 1024;
+
+	private static class Node {
+		private final boolean dir;
+		private final TreeSet<String> children = new TreeSet<>();
+		private long size = 0, mtime = System.currentTimeMillis(),
+			rctime = mtime;
+
+		private Node(boolean dir) {
+			this.dir = dir;
+		}
+	}
+
+	private record Fd(String path, Node node, int flags) {}
+
+	private final String id;
+	private HashMap<String, Node> nodes = new HashMap<>();
+	private HashMap<Integer, Fd> fds = new HashMap<>();
+	private int nextFd = 3;
+
+	protected FakeCephMount(String id) {
+		super(id);
+		this.id = id;
+		nodes.put("/", new Node(true));
+	}
+
+	// of its own root URI, mounting this across remounts for the same tree
+	protected CephFSRoot newRoot(ContentResolver cr, String authority,
+			File cacheDir) {
+		var config = new CephFSExecutor.CephMountConfig(id, "/",
+			Map.of("mon_host", id + ".invalid"), false);
+		var root = new CephFSRoot(config, cr, authority, cacheDir);
+		root.executor.mount = unused -> this;
+		return root;
+	}
+
+	// regardless of throws clauses, as from native code
+	@SuppressWarnings("unchecked")
+	private static <E extends Throwable> RuntimeException raise(Throwable e)
+			throws E {
+		throw (E) e;
+	}
+
+	private static String normalize(String path) {
+		while (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path.isEmpty() ? "/" : path;
+	}
+
+	private static String parentOf(String path) {
+		var i = path.lastIndexOf('/');
+		return i <= 0 ? "/" : path.substring(0, i);
+	}
+
+	private static String nameOf(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	private Node lookup(String path) throws FileNotFoundException {
+		var node = nodes.get(normalize(path));
+		if (node == null) {
+			throw new FileNotFoundException("No such file or directory");
+		}
+		return node;
+	}
+
+	private Node lookupDir(String path) throws FileNotFoundException {
+		var node = lookup(path);
+		if (!node.dir) {
+			throw raise(new CephNotDirectoryException("Not a directory"));
+		}
+		return node;
+	}
+
+	private Fd lookupFd(int fd) {
+		var f = fds.get(fd);
+		if (f == null) {
+			throw raise(new IOException("Bad file descriptor"));
+		}
+		return f;
+	}
+
+	// of the node and, for rctime, of all above it
+	private void touch(String path) {
+		var now = System.currentTimeMillis();
+		var node = nodes.get(path);
+		if (node != null) {
+			node.mtime = now;
+		}
+		while (true) {
+			node = nodes.get(path);
+			if (node != null) {
+				node.rctime = now;
+			}
+			if (path.equals("/")) {
+				break;
+			}
+			path = parentOf(path);
+		}
+	}
+
+	private Node create(String path, boolean dir) throws IOException {
+		path = normalize(path);
+		if (nodes.containsKey(path)) {
+			throw new CephFileAlreadyExistsException("File exists");
+		}
+		var parent = lookupDir(parentOf(path));
+		var node = new Node(dir);
+		nodes.put(path, node);
+		parent.children.add(nameOf(path));
+		touch(parentOf(path));
+		return node;
+	}
+
+	// for fixtures: parents made as needed, files grown to at least size
+	protected synchronized void populate(String path, boolean dir, long size)
+			throws IOException {
+		path = normalize(path);
+		var parent = parentOf(path);
+		if (!nodes.containsKey(parent)) {
+			populate(parent, true, 0);
+		}
+		var node = nodes.get(path);
+		if (node == null) {
+			node = create(path, dir);
+		} else if (node.dir != dir) {
+			throw new IOException(dir ? "Not a directory" : "Is a directory");
+		}
+		if (!dir && node.size < size) {
+			node.size = size;
+		}
+	}
+
+	private static void fill(Node node, CephStat stat) {
+		stat.mode = (node.dir ? S_IFDIR | 0777 : S_IFREG | 0666);
+		stat.uid = 0;
+		stat.gid = 0;
+		stat.size = node.size;
+		stat.blksize = STRIPE_UNIT;
+		stat.blocks = (node.size + 511) / 512;
+		stat.a_time = node.mtime;
+		stat.m_time = node.mtime;
+	}
+
+	@Override
+	public void conf_set(String option, String value) {
+	}
+
+	@Override
+	public void mount(String root) {
+	}
+
+	@Override
+	public void unmount() {
+	}
+
+	@Override
+	public synchronized void statfs(String path, CephStatVFS statvfs)
+			throws FileNotFoundException {
+		lookup(path);
+		long used = 0;
+		for (var node : nodes.values()) {
+			used += node.size;
+		}
+		statvfs.bsize = STRIPE_UNIT;
+		statvfs.frsize = STRIPE_UNIT;
+		statvfs.blocks = Long.MAX_VALUE / STRIPE_UNIT;
+		statvfs.bavail = statvfs.blocks - used / STRIPE_UNIT;
+		statvfs.files = nodes.size();
+		statvfs.fsid = 0;
+		statvfs.namemax = 255;
+	}
+
+	@Override
+	public synchronized String[] listdir(String path)
+			throws FileNotFoundException {
+		return lookupDir(path).children.toArray(new String[0]);
+	}
+
+	@Override
+	public synchronized void mkdir(String path, int mode) throws IOException {
+		create(path, true);
+	}
+
+	private void remove(String path, boolean dir) throws IOException {
+		path = normalize(path);
+		var node = lookup(path);
+		if (node.dir != dir) {
+			throw new IOException(dir ? "Not a directory" : "Is a directory");
+		}
+		if (dir && !node.children.isEmpty()) {
+			throw new IOException("Directory not empty");
+		}
+		nodes.remove(path);
+		nodes.get(parentOf(path)).children.remove(nameOf(path));
+		touch(parentOf(path));
+	}
+
+	@Override
+	public synchronized void unlink(String path) throws FileNotFoundException {
+		try {
+			remove(path, false);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw raise(e);
+		}
+	}
+
+	@Override
+	public synchronized void rmdir(String path) throws FileNotFoundException {
+		try {
+			remove(path, true);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw raise(e);
+		}
+	}
+
+	@Override
+	public synchronized void rename(String from, String to)
+			throws FileNotFoundException {
+		from = normalize(from);
+		to = normalize(to);
+		var node = lookup(from);
+		var parent = lookupDir(parentOf(to));
+		if (to.startsWith(from + "/")) {
+			throw raise(new IOException("Invalid argument"));
+		}
+		var existing = nodes.get(to);
+		if (existing != null && existing != node) {
+			if (existing.dir && !existing.children.isEmpty()) {
+				throw raise(new IOException("Directory not empty"));
+			}
+			nodes.remove(to);
+		}
+		// everything under it moves along
+		var moved = new HashMap<String, Node>();
+		for (var it = nodes.entrySet().iterator(); it.hasNext();) {
+			var e = it.next();
+			if (e.getKey().equals(from) || e.getKey().startsWith(from + "/")) {
+				moved.put(to + e.getKey().substring(from.length()), e.getValue());
+				it.remove();
+			}
+		}
+		nodes.putAll(moved);
+		nodes.get(parentOf(from)).children.remove(nameOf(from));
+		parent.children.add(nameOf(to));
+		touch(parentOf(from));
+		touch(parentOf(to));
+	}
+
+	@Override
+	public String readlink(String path) throws FileNotFoundException {
+		throw raise(new IOException("Invalid argument"));
+	}
+
+	@Override
+	public synchronized void lstat(String path, CephStat stat)
+			throws FileNotFoundException, CephNotDirectoryException {
+		fill(lookup(path), stat);
+	}
+
+	@Override
+	public synchronized void stat(String path, CephStat stat)
+			throws FileNotFoundException, CephNotDirectoryException {
+		fill(lookup(path), stat);
+	}
+
+	@Override
+	public synchronized int open(String path, int flags, int mode)
+			throws FileNotFoundException {
+		path = normalize(path);
+		var node = nodes.get(path);
+		if (node != null && (flags & O_CREAT) != 0 && (flags & O_EXCL) != 0) {
+			throw raise(new CephFileAlreadyExistsException("File exists"));
+		}
+		if (node == null) {
+			if ((flags & O_CREAT) == 0) {
+				throw new FileNotFoundException("No such file or directory");
+			}
+			try {
+				node = create(path, false);
+			} catch (FileNotFoundException e) {
+				throw e;
+			} catch (IOException e) {
+				throw raise(e);
+			}
+		}
+		if (node.dir && (flags & (O_WRONLY | O_RDWR)) != 0) {
+			throw raise(new IOException("Is a directory"));
+		}
+		if ((flags & O_TRUNC) != 0 && node.size != 0) {
+			node.size = 0;
+			touch(path);
+		}
+		var fd = nextFd++;
+		fds.put(fd, new Fd(path, node, flags));
+		return fd;
+	}
+
+	@Override
+	public synchronized int open(String path, int flags, int mode,
+			int stripeUnit, int stripeCount, int objectSize, String dataPool)
+			throws FileNotFoundException {
+		return open(path, flags, mode);
+	}
+
+	@Override
+	public synchronized void close(int fd) {
+		fds.remove(fd);
+	}
+
+	@Override
+	public synchronized long read(int fd, byte[] buf, long size, long offset) {
+		var node = lookupFd(fd).node();
+		var n = (int) Math.max(0, Math.min(size, node.size - offset));
+		Arrays.fill(buf, 0, n, (byte) 0);
+		return n;
+	}
+
+	@Override
+	public synchronized long write(int fd, byte[] buf, long size,
+			long offset) {
+		var f = lookupFd(fd);
+		var node = f.node();
+		if (offset < 0 && (f.flags() & O_APPEND) != 0) {
+			offset = node.size;
+		}
+		node.size = Math.max(node.size, Math.max(0, offset) + size);
+		touch(f.path());
+		return size;
+	}
+
+	@Override
+	public synchronized void ftruncate(int fd, long size) {
+		var f = lookupFd(fd);
+		f.node().size = size;
+		touch(f.path());
+	}
+
+	@Override
+	public void fsync(int fd, boolean dataOnly) {
+	}
+
+	@Override
+	public synchronized void fstat(int fd, CephStat stat) {
+		fill(lookupFd(fd).node(), stat);
+	}
+
+	private long count(String path, boolean files, boolean dirs,
+			boolean bytes) {
+		long n = 0;
+		for (var e : nodes.entrySet()) {
+			if (!e.getKey().startsWith(path.equals("/") ? "/" : path + "/") ||
+					e.getKey().equals(path)) {
+				continue;
+			}
+			var node = e.getValue();
+			n += bytes ? node.size :
+				(node.dir ? dirs : files) ? 1 : 0;
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized long getxattr(String path, String name, byte[] buf)
+			throws FileNotFoundException {
+		path = normalize(path);
+		var node = lookup(path);
+		var value = switch (name) {
+		case "ceph.dir.rctime" -> node.dir ? String.format(
+			Locale.ROOT, "%d.%09d", node.rctime / 1000,
+			node.rctime % 1000 * 1000000) : null;
+		case "ceph.dir.rentries" ->
+			node.dir ? Long.toString(count(path, true, true, false)) : null;
+		case "ceph.dir.rfiles" ->
+			node.dir ? Long.toString(count(path, true, false, false)) : null;
+		case "ceph.dir.rsubdirs" ->
+			node.dir ? Long.toString(count(path, false, true, false)) : null;
+		case "ceph.dir.rbytes" ->
+			node.dir ? Long.toString(count(path, false, false, true)) : null;
+		case "ceph.file.layout.stripe_unit" ->
+			node.dir ? null : Long.toString(STRIPE_UNIT);
+		default -> null;
+		};
+		if (value == null) {
+			throw raise(new IOException("No data available"));
+		}
+		var bytes = value.getBytes(StandardCharsets.UTF_8);
+		var n = Math.min(bytes.length, buf.length);
+		System.arraycopy(bytes, 0, buf, 0, n);
+		return n;
+	}
+}
@@ -0,0 +1,56 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.util.Log;
+
+/*
+ * ceph.file.layout, in the same format as the vxattr, e.g.
+ * "stripe_unit=1048576 stripe_count=4 object_size=4194304 pool=cephfs_data"
+ */
+public record FileLayout(int stripeUnit, int stripeCount, int objectSize,
+		String pool) {
+	private static final String LOG_NAME = "FileLayout";
+
+	// null if unset or invalid
+	protected static FileLayout parse(String s) {
+		if (s == null || s.trim().isEmpty()) {
+			return null;
+		}
+		int stripeUnit = 0, stripeCount = 0, objectSize = 0;
+		String pool = null;
+		try {
+			for (var field : s.trim().split("\\s+")) {
+				var kv = field.split("=", 2);
+				if (kv.length != 2) {
+					continue;
+				}
+				switch (kv[0]) {
+				case "stripe_unit" -> stripeUnit = Integer.parseInt(kv[1]);
+				case "stripe_count" -> stripeCount = Integer.parseInt(kv[1]);
+				case "object_size" -> objectSize = Integer.parseInt(kv[1]);
+				case "pool" -> pool = kv[1];
+				}
+			}
+		} catch (NumberFormatException e) {
+			Log.w(LOG_NAME, "invalid layout: " + s, e);
+			return null;
+		}
+		// same constraints as the MDS
+		if (stripeUnit <= 0 || stripeCount <= 0 || objectSize <= 0 ||
+				objectSize % stripeUnit != 0) {
+			Log.w(LOG_NAME, "invalid layout: " + s);
+			return null;
+		}
+		return new FileLayout(stripeUnit, stripeCount, objectSize, pool);
+	}
+
+	// types likely to be large, sequentially written
+	protected static boolean isLargeType(String mimeType) {
+		return mimeType.startsWith("video/") ||
+			mimeType.equals("application/zip") ||
+			mimeType.equals("application/x-tar") ||
+			mimeType.equals("application/gzip") ||
+			mimeType.equals("application/x-7z-compressed") ||
+			mimeType.equals("application/x-xz") ||
+			mimeType.equals("application/zstd");
+	}
+}
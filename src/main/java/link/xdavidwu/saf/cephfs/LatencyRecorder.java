@@ -0,0 +1,35 @@
+package link.xdavidwu.saf.cephfs;
+
+import java.util.Arrays;
+
+/*
+ * Latencies of the last samples, for percentiles in dumpsys
+ */
+public class LatencyRecorder {
+	private final long[] samples;
+	private int next = 0;
+	private long count = 0;
+
+	public LatencyRecorder(int capacity) {
+		samples = new long[capacity];
+	}
+
+	protected synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % samples.length;
+		count++;
+	}
+
+	@Override
+	public synchronized String toString() {
+		var n = (int) Math.min(count, samples.length);
+		if (n == 0) {
+			return "none";
+		}
+		var sorted = Arrays.copyOf(samples, n);
+		Arrays.sort(sorted);
+		return count + " total, last " + n + ": p50 " + sorted[n / 2] +
+			"ms p99 " + sorted[Math.min(n - 1, n * 99 / 100)] +
+			"ms max " + sorted[n - 1] + "ms";
+	}
+}
@@ -0,0 +1,71 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.util.LruCache;
+
+import link.xdavidwu.saf.MemoryGovernor;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.ceph.fs.CephStat;
+
+/*
+ * Last known listings of directories, for conditional revalidation
+ *
+ * ceph.dir.rctime is the latest ctime of the directory and anything below,
+ * so an unchanged rctime means the whole listing, including stats of
+ * entries, is still valid. Otherwise, mtime of the directory tells whether
+ * names need to be listed again.
+ *
+ * rctime propagation across MDSes is lazy, changes deep in a subtree may
+ * take a while to show up, but direct entries are what we care about here.
+ */
+public class ListingCache {
+	// cs is the followed stat for symlinks, lcs otherwise
+	protected record Entry(CephStat lcs, CephStat cs) {}
+
+	protected record Listing(String rctime, CephStat stat, String[] names,
+			Map<String, Entry> entries, Set<String> thumbnails) {}
+
+	// in number of entries
+	private static final int DEFAULT_BUDGET = 64 * 1024;
+	// name, stats and map entry, roughly
+	protected static final int BYTES_PER_ENTRY = 256;
+
+	private LruCache<Long, Listing> cache =
+			new LruCache<Long, Listing>(DEFAULT_BUDGET) {
+		protected int sizeOf(Long key, Listing value) {
+			return value.names().length + 1;
+		}
+	};
+
+	// keyed by PathKeys, for listings to survive renames
+	protected Listing get(long key) {
+		return cache.get(key);
+	}
+
+	protected void put(long key, Listing listing) {
+		cache.put(key, listing);
+	}
+
+	protected void invalidate(long key) {
+		cache.remove(key);
+	}
+
+	protected void clear() {
+		cache.evictAll();
+	}
+
+	protected void register(String name) {
+		MemoryGovernor.register(name + ": listings", cache, BYTES_PER_ENTRY);
+	}
+
+	protected void unregister() {
+		MemoryGovernor.unregister(cache);
+	}
+
+	protected static boolean sameStat(CephStat a, CephStat b) {
+		return a.mode == b.mode && a.uid == b.uid && a.gid == b.gid &&
+			a.size == b.size && a.m_time == b.m_time;
+	}
+}
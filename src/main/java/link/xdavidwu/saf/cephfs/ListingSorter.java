@@ -0,0 +1,147 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.provider.DocumentsContract.Document;
+
+/*
+ * Orders listings for sortOrder and paging, so clients do not pull every
+ * row across binder to sort them on their own
+ *
+ * Only the first n entries are ordered, with a bounded heap of indices
+ * over primitive keys, O(N log n).
+ */
+public class ListingSorter {
+	protected record Order(String column, boolean descending) {
+		// as generated by DocumentsProvider, like "_display_name ASC"
+		protected static Order parse(String sortOrder) {
+			if (sortOrder == null) {
+				return null;
+			}
+			var fields = sortOrder.trim().split("\\s+");
+			if (fields.length == 0 || fields.length > 2 ||
+					!isSupported(fields[0])) {
+				return null;
+			}
+			return new Order(fields[0],
+				fields.length == 2 && fields[1].equalsIgnoreCase("DESC"));
+		}
+
+		protected static Order fromQueryArgs(Bundle queryArgs) {
+			if (queryArgs == null) {
+				return null;
+			}
+			var columns = queryArgs.getStringArray(
+				ContentResolver.QUERY_ARG_SORT_COLUMNS);
+			if (columns == null || columns.length == 0) {
+				return parse(queryArgs.getString(
+					ContentResolver.QUERY_ARG_SQL_SORT_ORDER));
+			}
+			if (!isSupported(columns[0])) {
+				return null;
+			}
+			return new Order(columns[0], queryArgs.getInt(
+				ContentResolver.QUERY_ARG_SORT_DIRECTION,
+				ContentResolver.QUERY_SORT_DIRECTION_ASCENDING) ==
+				ContentResolver.QUERY_SORT_DIRECTION_DESCENDING);
+		}
+
+		private static boolean isSupported(String column) {
+			return switch (column) {
+				case Document.COLUMN_DISPLAY_NAME, Document.COLUMN_SIZE,
+					Document.COLUMN_LAST_MODIFIED -> true;
+				default -> false;
+			};
+		}
+	}
+
+	private interface IndexComparator {
+		int compare(int a, int b);
+	}
+
+	/*
+	 * Returns indices into names of the first n entries in order
+	 */
+	protected static int[] sort(ListingCache.Listing listing, Order order,
+			int n) {
+		var names = listing.names();
+		IndexComparator cmp;
+		if (order.column().equals(Document.COLUMN_DISPLAY_NAME)) {
+			cmp = (a, b) -> names[a].compareToIgnoreCase(names[b]);
+		} else {
+			var size = order.column().equals(Document.COLUMN_SIZE);
+			var keys = new long[names.length];
+			for (int i = 0; i < names.length; i++) {
+				var lcs = listing.entries().get(names[i]).lcs();
+				keys[i] = size ? lcs.size : lcs.m_time;
+			}
+			cmp = (a, b) -> Long.compare(keys[a], keys[b]);
+		}
+		IndexComparator directed = order.descending() ?
+			(a, b) -> cmp.compare(b, a) : cmp;
+		// stable
+		IndexComparator total = (a, b) -> {
+			var r = directed.compare(a, b);
+			return r != 0 ? r : Integer.compare(a, b);
+		};
+		return select(names.length, Math.min(n, names.length), total);
+	}
+
+	private static int[] select(int count, int n, IndexComparator cmp) {
+		// max-heap of the best n so far, worst on top
+		var heap = new int[n];
+		int size = 0;
+		for (int i = 0; i < count && n > 0; i++) {
+			if (size < n) {
+				heap[size] = i;
+				siftUp(heap, size++, cmp);
+			} else if (cmp.compare(i, heap[0]) < 0) {
+				heap[0] = i;
+				siftDown(heap, 0, size, cmp);
+			}
+		}
+		var result = new int[size];
+		while (size > 0) {
+			result[size - 1] = heap[0];
+			heap[0] = heap[--size];
+			siftDown(heap, 0, size, cmp);
+		}
+		return result;
+	}
+
+	private static void siftUp(int[] heap, int i, IndexComparator cmp) {
+		while (i > 0) {
+			var parent = (i - 1) / 2;
+			if (cmp.compare(heap[i], heap[parent]) <= 0) {
+				return;
+			}
+			swap(heap, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] heap, int i, int size,
+			IndexComparator cmp) {
+		while (true) {
+			var largest = i;
+			int l = 2 * i + 1, r = l + 1;
+			if (l < size && cmp.compare(heap[l], heap[largest]) > 0) {
+				largest = l;
+			}
+			if (r < size && cmp.compare(heap[r], heap[largest]) > 0) {
+				largest = r;
+			}
+			if (largest == i) {
+				return;
+			}
+			swap(heap, i, largest);
+			i = largest;
+		}
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		var t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+}
@@ -0,0 +1,229 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.ceph.fs.CephStat;
+
+/*
+ * Listings of recently visited directories, persisted to survive process
+ * death, to be shown while revalidating on cold start
+ *
+ * Keyed by path, as PathKeys do not survive either. Saved a while after
+ * changes, as a whole, to a file replaced atomically.
+ */
+public class ListingStore {
+	private static final String LOG_NAME = "ListingStore";
+	private static final int VERSION = 1;
+	private static final int MAX_DIRECTORIES = 128;
+	private static final long SAVE_DELAY = 5000;
+
+	private static final ScheduledExecutorService saver =
+		Executors.newSingleThreadScheduledExecutor();
+
+	private final File file;
+	private boolean loaded = false, saving = false;
+	// access-ordered, for LRU
+	private LinkedHashMap<String, ListingCache.Listing> listings =
+			new LinkedHashMap<>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(
+				Map.Entry<String, ListingCache.Listing> eldest) {
+			return size() > MAX_DIRECTORIES;
+		}
+	};
+
+	public ListingStore(File file) {
+		this.file = file;
+	}
+
+	protected synchronized ListingCache.Listing get(String path) {
+		load();
+		return listings.get(path);
+	}
+
+	// only listings with rctime, others are not worth keeping
+	protected synchronized void put(String path, ListingCache.Listing listing) {
+		load();
+		if (listings.get(path) == listing) {
+			return;
+		}
+		listings.put(path, listing);
+		scheduleSave();
+	}
+
+	protected synchronized void invalidate(String path) {
+		load();
+		if (listings.remove(path) != null) {
+			scheduleSave();
+		}
+	}
+
+	// the directory and everything below
+	protected synchronized void invalidateUnder(String path) {
+		load();
+		var prefix = path + "/";
+		if (listings.keySet().removeIf(p -> p.equals(path) ||
+				p.startsWith(prefix))) {
+			scheduleSave();
+		}
+	}
+
+	protected synchronized void clear() {
+		listings.clear();
+		loaded = true;
+		file.delete();
+	}
+
+	private void scheduleSave() {
+		if (!saving) {
+			saving = true;
+			saver.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void save() {
+		ArrayList<Map.Entry<String, ListingCache.Listing>> snapshot;
+		synchronized (this) {
+			saving = false;
+			// least recently used first, to be loaded in the same order
+			snapshot = new ArrayList<>(listings.entrySet());
+		}
+		// as after clear(), even if a save was already scheduled
+		if (snapshot.isEmpty()) {
+			file.delete();
+			return;
+		}
+		var tmp = new File(file.getPath() + ".tmp");
+		try (var out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)))) {
+			out.writeInt(VERSION);
+			out.writeInt(snapshot.size());
+			for (var e : snapshot) {
+				out.writeUTF(e.getKey());
+				writeListing(out, e.getValue());
+			}
+		} catch (IOException e) {
+			Log.w(LOG_NAME, "save " + file, e);
+			tmp.delete();
+			return;
+		}
+		if (!tmp.renameTo(file)) {
+			Log.w(LOG_NAME, "rename to " + file);
+			tmp.delete();
+		}
+	}
+
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		try (var in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			if (in.readInt() != VERSION) {
+				return;
+			}
+			var n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				var path = in.readUTF();
+				listings.put(path, readListing(in));
+			}
+		} catch (FileNotFoundException e) {
+		} catch (IOException|RuntimeException e) {
+			Log.w(LOG_NAME, "load " + file, e);
+			listings.clear();
+			file.delete();
+		}
+	}
+
+	private static void writeListing(DataOutputStream out,
+			ListingCache.Listing l) throws IOException {
+		out.writeUTF(l.rctime());
+		writeStat(out, l.stat());
+		out.writeInt(l.names().length);
+		for (var name : l.names()) {
+			var entry = l.entries().get(name);
+			out.writeUTF(name);
+			writeStat(out, entry.lcs());
+			// followed stat only for symlinks
+			out.writeBoolean(entry.cs() != entry.lcs());
+			if (entry.cs() != entry.lcs()) {
+				writeStat(out, entry.cs());
+			}
+		}
+		out.writeBoolean(l.thumbnails() != null);
+		if (l.thumbnails() != null) {
+			out.writeInt(l.thumbnails().size());
+			for (var t : l.thumbnails()) {
+				out.writeUTF(t);
+			}
+		}
+	}
+
+	private static ListingCache.Listing readListing(DataInputStream in)
+			throws IOException {
+		var rctime = in.readUTF();
+		var stat = readStat(in);
+		var names = new String[in.readInt()];
+		var entries = new HashMap<String, ListingCache.Entry>(names.length);
+		for (int i = 0; i < names.length; i++) {
+			names[i] = in.readUTF();
+			var lcs = readStat(in);
+			var cs = in.readBoolean() ? readStat(in) : lcs;
+			entries.put(names[i], new ListingCache.Entry(lcs, cs));
+		}
+		Set<String> thumbnails = null;
+		if (in.readBoolean()) {
+			var n = in.readInt();
+			thumbnails = new HashSet<>(n);
+			for (int i = 0; i < n; i++) {
+				thumbnails.add(in.readUTF());
+			}
+		}
+		return new ListingCache.Listing(rctime, stat, names, entries,
+			thumbnails);
+	}
+
+	private static void writeStat(DataOutputStream out, CephStat cs)
+			throws IOException {
+		out.writeInt(cs.mode);
+		out.writeInt(cs.uid);
+		out.writeInt(cs.gid);
+		out.writeLong(cs.size);
+		out.writeLong(cs.blksize);
+		out.writeLong(cs.blocks);
+		out.writeLong(cs.a_time);
+		out.writeLong(cs.m_time);
+	}
+
+	private static CephStat readStat(DataInputStream in) throws IOException {
+		var cs = new CephStat();
+		cs.mode = in.readInt();
+		cs.uid = in.readInt();
+		cs.gid = in.readInt();
+		cs.size = in.readLong();
+		cs.blksize = in.readLong();
+		cs.blocks = in.readLong();
+		cs.a_time = in.readLong();
+		cs.m_time = in.readLong();
+		return cs;
+	}
+}
@@ -0,0 +1,246 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.content.ContentResolver;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.provider.DocumentsProvider;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+ * Drives the provider from concurrent simulated apps, over a generated
+ * tree of directories and files, to see how they get along
+ *
+ * Apps take turns as a gallery (listings and thumbnails), a backup tool
+ * (whole files, sequentially) and a file manager (listings, documents and
+ * metadata), each as an app of its own. They run against a root of their
+ * own, backed by FakeCephMount and never listed, so no cluster is touched;
+ * latency may be added to its executor to stand in for a real one.
+ */
+public class LoadGenerator {
+	private static final int CHUNK_SIZE = 128 * 1024;
+	private static final long PROBE_INTERVAL = 100;
+	private static final int SAMPLES = 4096;
+	private static final String CALLER_PREFIX = "loadtest.client";
+
+	protected record Options(int clients, int seconds, int dirs, int files,
+			int size, long latency, long jitter) {
+		// from key=value arguments, defaults for the rest
+		protected static Options parse(Map<String, String> args) {
+			return new Options(
+				Integer.parseInt(args.getOrDefault("clients", "6")),
+				Integer.parseInt(args.getOrDefault("seconds", "30")),
+				Integer.parseInt(args.getOrDefault("dirs", "8")),
+				Integer.parseInt(args.getOrDefault("files", "64")),
+				Integer.parseInt(args.getOrDefault("size", "1048576")),
+				Long.parseLong(args.getOrDefault("latency", "0")),
+				Long.parseLong(args.getOrDefault("jitter", "0")));
+		}
+	}
+
+	private enum Role { GALLERY, BACKUP, BROWSER }
+
+	private static class Stats {
+		private final LatencyRecorder latencies = new LatencyRecorder(SAMPLES);
+		private final AtomicInteger ops = new AtomicInteger(),
+			failures = new AtomicInteger();
+	}
+
+	private DocumentsProvider provider;
+	private String authority;
+	// of proxy fd callbacks, by calling app
+	private Function<String, Handler> ioHandlers;
+	private Options options;
+	private String[] dirIds;
+
+	public LoadGenerator(DocumentsProvider provider, String authority,
+			Function<String, Handler> ioHandlers) {
+		this.provider = provider;
+		this.authority = authority;
+		this.ioHandlers = ioHandlers;
+	}
+
+	// to be closed, and its store cleared, by the caller when done
+	protected static CephFSRoot newTestRoot(ContentResolver cr,
+			String authority, File cacheDir) {
+		return new FakeCephMount("loadtest").newRoot(cr, authority, cacheDir);
+	}
+
+	protected void run(CephFSRoot root, Options options, PrintWriter writer)
+			throws IOException {
+		this.options = options;
+		fixture(root.rootUri);
+
+		var stats = new Stats[Role.values().length];
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new Stats();
+		}
+		// how long proxy fd callbacks wait for the IO threads of the clients
+		var ioLag = new LatencyRecorder(SAMPLES);
+		var prober = Executors.newSingleThreadScheduledExecutor();
+		prober.scheduleAtFixedRate(() -> {
+			// looked up each time, as idle ones may be replaced
+			var handlers = new HashSet<Handler>();
+			for (int i = 0; i < options.clients(); i++) {
+				handlers.add(ioHandlers.apply(CALLER_PREFIX + i));
+			}
+			for (var handler : handlers) {
+				var posted = SystemClock.elapsedRealtime();
+				handler.post(() ->
+					ioLag.record(SystemClock.elapsedRealtime() - posted));
+			}
+		}, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+
+		var previousLatency = root.executor.setInjectedLatency(
+			options.latency());
+		var previousJitter = root.executor.setInjectedJitter(options.jitter());
+		var clients = Executors.newFixedThreadPool(options.clients());
+		var deadline = SystemClock.elapsedRealtime() + options.seconds() * 1000L;
+		try {
+			for (int i = 0; i < options.clients(); i++) {
+				var role = Role.values()[i % Role.values().length];
+				var s = stats[role.ordinal()];
+				var caller = CALLER_PREFIX + i;
+				clients.submit(() -> {
+					// calls in process come with no calling package to replace it
+					CallerAccounting.enterCaller(caller);
+					while (SystemClock.elapsedRealtime() < deadline) {
+						var start = SystemClock.elapsedRealtime();
+						try {
+							step(role);
+						} catch (IOException|RuntimeException e) {
+							s.failures.incrementAndGet();
+						}
+						s.latencies.record(SystemClock.elapsedRealtime() - start);
+						s.ops.incrementAndGet();
+					}
+				});
+			}
+			clients.shutdown();
+			clients.awaitTermination(options.seconds() + 60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			clients.shutdownNow();
+			prober.shutdownNow();
+			root.executor.setInjectedLatency(previousLatency);
+			root.executor.setInjectedJitter(previousJitter);
+		}
+
+		writer.println("load: " + options);
+		for (var role : Role.values()) {
+			var s = stats[role.ordinal()];
+			writer.println("  " + role + ": " + s.ops.get() + " steps, " +
+				s.ops.get() / Math.max(1, options.seconds()) + "/s, " +
+				s.failures.get() + " failed, " + s.latencies);
+		}
+		writer.println("  IO thread lag: " + ioLag);
+	}
+
+	private static String childId(String parentId, String name) {
+		return Uri.parse(parentId).buildUpon().appendPath(name).build()
+			.toString();
+	}
+
+	private boolean exists(String documentId) {
+		var c = provider.query(DocumentsContract.buildDocumentUri(authority,
+			documentId), null, (Bundle) null, null);
+		if (c == null) {
+			return false;
+		}
+		try {
+			return c.getCount() > 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	private void fixture(String rootId) throws IOException {
+		dirIds = new String[options.dirs()];
+		var buf = new byte[CHUNK_SIZE];
+		ThreadLocalRandom.current().nextBytes(buf);
+		for (int d = 0; d < options.dirs(); d++) {
+			var dirName = String.format(Locale.ROOT, "d%03d", d);
+			dirIds[d] = provider.createDocument(rootId, Document.MIME_TYPE_DIR,
+				dirName);
+			for (int f = 0; f < options.files(); f++) {
+				var fileId = provider.createDocument(dirIds[d], "image/jpeg",
+					fileName(f));
+				try (var out = new ParcelFileDescriptor.AutoCloseOutputStream(
+						provider.openDocument(fileId, "w", null))) {
+					for (int written = 0; written < options.size();
+							written += buf.length) {
+						out.write(buf, 0, Math.min(buf.length,
+							options.size() - written));
+					}
+				}
+			}
+		}
+	}
+
+	private void step(Role role) throws IOException {
+		var random = ThreadLocalRandom.current();
+		var dirId = dirIds[random.nextInt(dirIds.length)];
+		switch (role) {
+		case GALLERY -> {
+			list(dirId);
+			for (int i = 0; i < Math.min(8, options.files()); i++) {
+				try {
+					provider.openDocumentThumbnail(childId(dirId, fileName(i)),
+						new Point(256, 256), null).close();
+				} catch (FileNotFoundException e) {
+					// no thumbnail in generated files, the lookup is what counts
+				}
+			}
+		}
+		case BACKUP -> {
+			var fileId = childId(dirId, fileName(random.nextInt(options.files())));
+			try (var in = new ParcelFileDescriptor.AutoCloseInputStream(
+					provider.openDocument(fileId, "r", null))) {
+				var buf = new byte[CHUNK_SIZE];
+				while (in.read(buf) > 0) {
+				}
+			}
+		}
+		case BROWSER -> {
+			list(dirId);
+			for (int i = 0; i < 4; i++) {
+				var fileId = childId(dirId,
+					fileName(random.nextInt(options.files())));
+				exists(fileId);
+				provider.getDocumentMetadata(fileId);
+			}
+		}
+		}
+	}
+
+	private static String fileName(int i) {
+		return String.format(Locale.ROOT, "f%04d.jpg", i);
+	}
+
+	private void list(String dirId) {
+		var c = provider.query(DocumentsContract.buildChildDocumentsUri(
+			authority, dirId), null, (Bundle) null, null);
+		if (c == null) {
+			throw new IllegalStateException("no cursor for " + dirId);
+		}
+		c.close();
+	}
+}
@@ -9,11 +9,38 @@ import android.provider.DocumentsContract;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 public class MainActivity extends PreferenceActivity
 	implements OnSharedPreferenceChangeListener {
-	private EditTextPreference monText, pathText, idText, keyText, timeoutText;
+	private EditTextPreference monText, pathText, idText, keyText, timeoutText,
+		readaheadDepthText, readaheadBudgetText, layoutText, cacheSizeText,
+		statfsIntervalText, rootKeysText;
+
+	// keys used to be inline in "roots", shown in clear text
+	private static void moveRootKeys(SharedPreferences settings) {
+		if (!settings.getString("root_keys", "").equals(""))
+			return;
+		var roots = new ArrayList<String>();
+		var keys = new ArrayList<String>();
+		for (var line : settings.getString("roots", "").split("\n")) {
+			var fields = line.trim().split("\\s+");
+			if (fields.length == 3)
+				// keyless already, positions would not match
+				return;
+			if (fields.length != 4)
+				continue;
+			roots.add(fields[0] + " " + fields[2] + " " + fields[3]);
+			keys.add(fields[1]);
+		}
+		if (keys.isEmpty())
+			return;
+		settings.edit()
+			.putString("roots", String.join("\n", roots))
+			.putString("root_keys", String.join(" ", keys))
+			.apply();
+	}
 
 	private void notifyRootChanges(){
 		Uri uri = DocumentsContract.buildRootsUri("link.xdavidwu.saf.cephfs");
@@ -30,8 +57,15 @@ public class MainActivity extends PreferenceActivity
 		idText = (EditTextPreference) findPreference("id");
 		keyText = (EditTextPreference) findPreference("key");
 		timeoutText = (EditTextPreference) findPreference("timeout");
+		readaheadDepthText = (EditTextPreference) findPreference("readahead_depth");
+		readaheadBudgetText = (EditTextPreference) findPreference("readahead_budget");
+		layoutText = (EditTextPreference) findPreference("layout");
+		cacheSizeText = (EditTextPreference) findPreference("cache_size");
+		statfsIntervalText = (EditTextPreference) findPreference("statfs_interval");
+		rootKeysText = (EditTextPreference) findPreference("root_keys");
 
 		SharedPreferences settings = getPreferenceScreen().getSharedPreferences();
+		moveRootKeys(settings);
 		settings.registerOnSharedPreferenceChangeListener(this);
 		if (!settings.getString("mon", "").equals(""))
 			monText.setSummary(settings.getString("mon", ""));
@@ -41,7 +75,15 @@ public class MainActivity extends PreferenceActivity
 			idText.setSummary(settings.getString("id", ""));
 		if (!settings.getString("key", "").equals(""))
 			keyText.setSummary(getString(R.string.key_filled));
+		if (!settings.getString("root_keys", "").equals(""))
+			rootKeysText.setSummary(getString(R.string.key_filled));
 		timeoutText.setSummary(settings.getString("timeout", ""));
+		readaheadDepthText.setSummary(settings.getString("readahead_depth", ""));
+		readaheadBudgetText.setSummary(settings.getString("readahead_budget", ""));
+		if (!settings.getString("layout", "").equals(""))
+			layoutText.setSummary(settings.getString("layout", ""));
+		cacheSizeText.setSummary(settings.getString("cache_size", ""));
+		statfsIntervalText.setSummary(settings.getString("statfs_interval", ""));
 	}
 
 	@Override
@@ -73,9 +115,33 @@ public class MainActivity extends PreferenceActivity
 			else
 				keyText.setSummary(getString(R.string.key_filled));
 			break;
+		case "root_keys":
+			if (settings.getString("root_keys", "").equals(""))
+				rootKeysText.setSummary(getString(R.string.root_keys_summary));
+			else
+				rootKeysText.setSummary(getString(R.string.key_filled));
+			break;
 		case "timeout":
 			timeoutText.setSummary(settings.getString("timeout", ""));
 			break;
+		case "readahead_depth":
+			readaheadDepthText.setSummary(settings.getString("readahead_depth", ""));
+			break;
+		case "readahead_budget":
+			readaheadBudgetText.setSummary(settings.getString("readahead_budget", ""));
+			break;
+		case "layout":
+			if (settings.getString("layout", "").equals(""))
+				layoutText.setSummary(getString(R.string.layout_summary));
+			else
+				layoutText.setSummary(settings.getString("layout", ""));
+			break;
+		case "cache_size":
+			cacheSizeText.setSummary(settings.getString("cache_size", ""));
+			break;
+		case "statfs_interval":
+			statfsIntervalText.setSummary(settings.getString("statfs_interval", ""));
+			break;
 		}
 	}
 }
@@ -0,0 +1,31 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.database.MatrixCursor;
+
+/*
+ * MatrixCursor that tells when the client is done with it
+ */
+public class ObservedMatrixCursor extends MatrixCursor {
+	private Runnable onClose;
+
+	public ObservedMatrixCursor(String[] columnNames, int initialCapacity) {
+		super(columnNames, initialCapacity);
+	}
+
+	protected synchronized void setOnClose(Runnable onClose) {
+		this.onClose = onClose;
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		Runnable r;
+		synchronized (this) {
+			r = onClose;
+			onClose = null;
+		}
+		if (r != null) {
+			r.run();
+		}
+	}
+}
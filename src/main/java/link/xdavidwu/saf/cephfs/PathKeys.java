@@ -0,0 +1,76 @@
+package link.xdavidwu.saf.cephfs;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/*
+ * Stable keys for paths, for caches to survive renames done through the
+ * provider
+ *
+ * libcephfs_jni CephStat does not carry inode numbers, so keys are
+ * assigned here on first sight, and moved along with renames, together
+ * with anything below.
+ */
+public class PathKeys {
+	// keys handed out are forgotten past this, caches age them out
+	private static final int MAX_PATHS = 64 * 1024;
+
+	private TreeMap<String, Long> keys = new TreeMap<>();
+	private long next = 0;
+
+	// root may come as either "" or "/"
+	private static String normalize(String path) {
+		var end = path.length();
+		while (end > 0 && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		return path.substring(0, end);
+	}
+
+	protected synchronized long keyOf(String path) {
+		path = normalize(path);
+		var key = keys.get(path);
+		if (key == null) {
+			if (keys.size() >= MAX_PATHS) {
+				keys.clear();
+			}
+			key = next++;
+			keys.put(path, key);
+		}
+		return key;
+	}
+
+	// without assigning one, -1 if none
+	protected synchronized long peek(String path) {
+		var key = keys.get(normalize(path));
+		return key == null ? -1 : key;
+	}
+
+	// path itself and anything below
+	private ArrayList<String> subtree(String path) {
+		var paths = new ArrayList<String>();
+		if (keys.containsKey(path)) {
+			paths.add(path);
+		}
+		// '0' comes right after '/'
+		paths.addAll(keys.subMap(path + "/", path + "0").keySet());
+		return paths;
+	}
+
+	protected synchronized void rename(String from, String to) {
+		from = normalize(from);
+		to = normalize(to);
+		remove(to);
+		for (var path : subtree(from)) {
+			keys.put(to + path.substring(from.length()), keys.remove(path));
+		}
+	}
+
+	protected synchronized void remove(String path) {
+		subtree(normalize(path)).forEach(keys::remove);
+	}
+
+	protected synchronized void clear() {
+		keys.clear();
+	}
+}
@@ -0,0 +1,152 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import link.xdavidwu.saf.MemoryGovernor;
+
+/*
+ * Speculative work after a listing: listings of the first subdirectories
+ * and thumbnails of the first page of entries
+ *
+ * Rounds run one task at a time in background priority, admitted as
+ * PREFETCH so they are dropped under load, and a new listing abandons what
+ * is left of the previous round. Counters tell how much of
+ * what was fetched was later used.
+ */
+public class Prefetcher {
+	private static final String LOG_NAME = "Prefetcher";
+
+	protected static final int MAX_DIRECTORIES = 8, MAX_THUMBNAILS = 32;
+	// in bytes
+	private static final int THUMBNAIL_BUDGET = 4 * 1024 * 1024;
+	// what was fetched but not used yet, for counting hits
+	private static final int MAX_PENDING = 1024;
+
+	protected interface Task {
+		void run() throws IOException;
+	}
+
+	protected record Thumbnail(long mtime, byte[] data) {}
+
+	protected static class Counter {
+		private LinkedHashSet<Object> pending = new LinkedHashSet<>();
+		private long issued = 0, hits = 0;
+
+		protected synchronized void issued(Object key) {
+			issued++;
+			pending.add(key);
+			if (pending.size() > MAX_PENDING) {
+				Iterator<Object> it = pending.iterator();
+				it.next();
+				it.remove();
+			}
+		}
+
+		protected synchronized void used(Object key) {
+			if (pending.remove(key)) {
+				hits++;
+			}
+		}
+
+		private synchronized void reset() {
+			pending.clear();
+			issued = hits = 0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return hits + "/" + issued + " used";
+		}
+	}
+
+	protected final Counter listings = new Counter(), thumbnails = new Counter();
+
+	private LruCache<String, Thumbnail> thumbnailData =
+			new LruCache<String, Thumbnail>(THUMBNAIL_BUDGET) {
+		protected int sizeOf(String key, Thumbnail value) {
+			return value.data().length;
+		}
+	};
+
+	private ExecutorService worker = Executors.newSingleThreadExecutor();
+	private boolean enabled = false;
+	private long generation = 0;
+
+	public Prefetcher() {
+		MemoryGovernor.register("prefetched thumbnails", thumbnailData, 1);
+	}
+
+	protected synchronized void configure(boolean enabled) {
+		this.enabled = enabled;
+		generation++;
+		listings.reset();
+		thumbnails.reset();
+		thumbnailData.evictAll();
+	}
+
+	protected synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	private synchronized boolean isCurrent(long round) {
+		return round == generation;
+	}
+
+	protected synchronized void schedule(List<Task> tasks) {
+		if (!enabled) {
+			return;
+		}
+		var round = ++generation;
+		for (var task : tasks) {
+			worker.submit(() -> {
+				if (!isCurrent(round)) {
+					return;
+				}
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				var previous = CephFSExecutor.setPriority(
+					CephFSExecutor.Priority.PREFETCH);
+				try {
+					task.run();
+				} catch (IOException|RuntimeException e) {
+					Log.d(LOG_NAME, "prefetch", e);
+				} finally {
+					CephFSExecutor.setPriority(previous);
+				}
+			});
+		}
+	}
+
+	// by document ID, paths of roots may collide
+	protected void putThumbnail(String documentId, long mtime, byte[] data) {
+		thumbnailData.put(documentId, new Thumbnail(mtime, data));
+		thumbnails.issued(documentId);
+	}
+
+	protected byte[] getThumbnail(String documentId, long mtime) {
+		var t = thumbnailData.get(documentId);
+		if (t == null || t.mtime() != mtime) {
+			return null;
+		}
+		thumbnails.used(documentId);
+		return t.data();
+	}
+
+	protected boolean hasThumbnail(String documentId, long mtime) {
+		var t = thumbnailData.get(documentId);
+		return t != null && t.mtime() == mtime;
+	}
+
+	@Override
+	public String toString() {
+		return "listings: " + listings + ", thumbnails: " + thumbnails;
+	}
+}
@@ -0,0 +1,174 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.os.Bundle;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import link.xdavidwu.saf.MemoryGovernor;
+
+/*
+ * Things under .snap/<snapshot>/ never change, so they are cached here
+ * without TTL or revalidation
+ *
+ * .snap itself is not included, as snapshots come and go.
+ */
+public class SnapshotCache {
+	private static final String SNAPDIR = ".snap";
+
+	// in number of entries
+	private static final int LISTING_BUDGET = 16 * 1024;
+	private static final int STAT_BUDGET = 16 * 1024;
+	private static final int METADATA_BUDGET = 256;
+	// path and stats, roughly
+	private static final int BYTES_PER_STAT = 256;
+	private static final int BYTES_PER_METADATA = 2048;
+	// in bytes
+	private static final int BLOCK_BUDGET = 32 * 1024 * 1024;
+	private static final int BLOCK_SIZE = 128 * 1024;
+
+	private LruCache<String, ListingCache.Listing> listings =
+			new LruCache<String, ListingCache.Listing>(LISTING_BUDGET) {
+		protected int sizeOf(String key, ListingCache.Listing value) {
+			return value.names().length + 1;
+		}
+	};
+
+	private LruCache<String, ListingCache.Entry> stats =
+		new LruCache<>(STAT_BUDGET);
+
+	private LruCache<String, Bundle> metadata =
+		new LruCache<>(METADATA_BUDGET);
+
+	private LruCache<String, byte[]> blocks =
+			new LruCache<String, byte[]>(BLOCK_BUDGET) {
+		protected int sizeOf(String key, byte[] value) {
+			return value.length;
+		}
+	};
+
+	protected void register(String name) {
+		MemoryGovernor.register(name + ": snapshot listings", listings,
+			ListingCache.BYTES_PER_ENTRY);
+		MemoryGovernor.register(name + ": snapshot stats", stats,
+			BYTES_PER_STAT);
+		MemoryGovernor.register(name + ": snapshot metadata", metadata,
+			BYTES_PER_METADATA);
+		MemoryGovernor.register(name + ": snapshot blocks", blocks, 1);
+	}
+
+	protected void unregister() {
+		MemoryGovernor.unregister(listings);
+		MemoryGovernor.unregister(stats);
+		MemoryGovernor.unregister(metadata);
+		MemoryGovernor.unregister(blocks);
+	}
+
+	protected void clear() {
+		listings.evictAll();
+		stats.evictAll();
+		metadata.evictAll();
+		blocks.evictAll();
+	}
+
+	// .snap/<snapshot> or anything below
+	protected static boolean isInSnapshot(String path) {
+		var i = path.indexOf("/" + SNAPDIR + "/");
+		return i != -1 && path.length() > i + SNAPDIR.length() + 2;
+	}
+
+	protected static boolean isSnapdir(String path) {
+		return path.endsWith("/" + SNAPDIR) || path.endsWith("/" + SNAPDIR + "/");
+	}
+
+	protected static String getSnapdirName() {
+		return SNAPDIR;
+	}
+
+	protected ListingCache.Listing getListing(String path) {
+		return listings.get(path);
+	}
+
+	protected void putListing(String path, ListingCache.Listing listing) {
+		listings.put(path, listing);
+		var dir = path + "/";
+		listing.entries().forEach((name, entry) -> stats.put(dir + name, entry));
+	}
+
+	protected ListingCache.Entry getStat(String path) {
+		return stats.get(path);
+	}
+
+	protected void putStat(String path, ListingCache.Entry entry) {
+		stats.put(path, entry);
+	}
+
+	protected Bundle getMetadata(String path) {
+		var b = metadata.get(path);
+		return b == null ? null : new Bundle(b);
+	}
+
+	protected void putMetadata(String path, Bundle bundle) {
+		metadata.put(path, new Bundle(bundle));
+	}
+
+	// files larger than this would only thrash blocks of others
+	protected static boolean shouldCacheBlocks(long size) {
+		return size <= BLOCK_BUDGET / 8;
+	}
+
+	/*
+	 * Only whole blocks, or the last one when the size is known, are kept:
+	 * a short read may not be the end of the file
+	 */
+	private byte[] fetch(String path, long index, StripedReader.Source source)
+			throws IOException {
+		var buf = new byte[BLOCK_SIZE];
+		var n = Math.max(0, source.read(index * BLOCK_SIZE, buf, BLOCK_SIZE));
+		// libcephfs_jni reads into the start of the array
+		while (n > 0 && n < BLOCK_SIZE) {
+			var rest = new byte[BLOCK_SIZE - n];
+			var m = source.read(index * BLOCK_SIZE + n, rest, rest.length);
+			if (m <= 0) {
+				break;
+			}
+			System.arraycopy(rest, 0, buf, n, m);
+			n += m;
+		}
+		var block = n < BLOCK_SIZE ? Arrays.copyOf(buf, n) : buf;
+		var entry = stats.get(path);
+		var last = entry != null && entry.cs() != null &&
+			index * BLOCK_SIZE + n == entry.cs().size;
+		if (n == BLOCK_SIZE || last) {
+			blocks.put(path + "@" + index, block);
+		}
+		return block;
+	}
+
+	protected int read(String path, long offset, int size, byte[] data,
+			StripedReader.Source source) throws IOException {
+		int copied = 0;
+		while (copied < size) {
+			var pos = offset + copied;
+			var index = pos / BLOCK_SIZE;
+			var key = path + "@" + index;
+			var block = blocks.get(key);
+			if (block == null) {
+				block = fetch(path, index, source);
+			}
+
+			var start = (int) (pos - index * BLOCK_SIZE);
+			if (start >= block.length) {
+				break;
+			}
+			var n = Math.min(block.length - start, size - copied);
+			System.arraycopy(block, start, data, copied, n);
+			copied += n;
+			if (block.length < BLOCK_SIZE) {
+				break;
+			}
+		}
+		return copied;
+	}
+}
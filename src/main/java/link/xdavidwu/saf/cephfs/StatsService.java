@@ -0,0 +1,103 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.io.IOException;
+
+import link.xdavidwu.saf.MemoryGovernor;
+
+import com.ceph.fs.CephMount;
+import com.ceph.fs.CephStatVFS;
+
+/*
+ * Recursive statistics of directories and statfs of the filesystem
+ *
+ * All ceph.dir.r* vxattrs of a directory are fetched in one admitted
+ * operation, and revalidated with ceph.dir.rctime alone. statfs is shared
+ * by callers within an interval, as DocumentsUI asks for roots often.
+ */
+public class StatsService {
+	protected record DirStats(String rctime, long entries, long bytes,
+			long files, long subdirs) {}
+
+	// in number of directories
+	private static final int DIR_BUDGET = 4096;
+	// the record with rctime, and the key
+	private static final int BYTES_PER_DIR = 160;
+
+	private LruCache<Long, DirStats> dirs = new LruCache<>(DIR_BUDGET);
+	// set from the main thread, which must not wait for a statfs
+	private volatile long statfsInterval = 30000;
+	private volatile CephStatVFS statfs;
+	private long statfsAt;
+	private final Object statfsLock = new Object();
+
+	protected void register(String name) {
+		MemoryGovernor.register(name + ": directory stats", dirs,
+			BYTES_PER_DIR);
+	}
+
+	protected void unregister() {
+		MemoryGovernor.unregister(dirs);
+	}
+
+	protected void configure(long statfsInterval) {
+		this.statfsInterval = statfsInterval;
+		statfs = null;
+		dirs.evictAll();
+	}
+
+	private static long getULL(CephMount cm, String path, String name)
+			throws IOException {
+		return Long.parseUnsignedLong(
+			CephFSExecutor.getxattrString(cm, path, name));
+	}
+
+	// keyed by PathKeys, null if not known
+	protected DirStats getCached(long key) {
+		return dirs.get(key);
+	}
+
+	protected DirStats get(CephFSExecutor executor, long key, String path)
+			throws IOException {
+		return executor.execute(cm -> {
+			var rctime = CephFSExecutor.getxattrString(cm, path,
+				"ceph.dir.rctime");
+			var cached = dirs.get(key);
+			if (cached != null && cached.rctime().equals(rctime)) {
+				return cached;
+			}
+			var stats = new DirStats(rctime,
+				getULL(cm, path, "ceph.dir.rentries"),
+				getULL(cm, path, "ceph.dir.rbytes"),
+				getULL(cm, path, "ceph.dir.rfiles"),
+				getULL(cm, path, "ceph.dir.rsubdirs"));
+			dirs.put(key, stats);
+			return stats;
+		});
+	}
+
+	protected void invalidate(long key) {
+		dirs.remove(key);
+	}
+
+	// concurrent callers wait for the same statfs
+	protected CephStatVFS statfs(CephFSExecutor executor) throws IOException {
+		synchronized (statfsLock) {
+			var now = SystemClock.elapsedRealtime();
+			var cached = statfs;
+			if (cached == null || now - statfsAt >= statfsInterval) {
+				cached = new CephStatVFS();
+				var csvfs = cached;
+				executor.execute(cm -> {
+					cm.statfs(".", csvfs);
+					return null;
+				});
+				statfs = cached;
+				statfsAt = now;
+			}
+			return cached;
+		}
+	}
+}
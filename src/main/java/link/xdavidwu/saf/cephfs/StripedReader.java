@@ -0,0 +1,193 @@
+package link.xdavidwu.saf.cephfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Read-ahead for sequential reads, with blocks aligned to stripe units,
+ * so that blocks in flight hit different RADOS objects
+ *
+ * Blocks are issued in parallel on TransferEngine, and consumed in order.
+ * Random access drops the window and goes to the source directly.
+ */
+public class StripedReader {
+	protected interface Source {
+		int read(long offset, byte[] buf, int size) throws IOException;
+
+		// may throw CephFSExecutor.DroppedException
+		default int prefetch(long offset, byte[] buf, int size)
+				throws IOException {
+			return read(offset, buf, size);
+		}
+
+		int blockSize() throws IOException;
+	}
+
+	// consecutive sequential reads before starting the window
+	private static final int SEQUENTIAL_THRESHOLD = 2;
+
+	// states of blocks, for budget and buffers to be returned once
+	private static final int PENDING = 0, RUNNING = 1, DONE = 2,
+		RELEASED = -1;
+
+	private record Block(long offset, byte[] buf, Future<Integer> future,
+		AtomicInteger state) {}
+
+	private TransferEngine engine;
+	private Source source;
+	private int blockSize = 0;
+	private ArrayDeque<Block> window = new ArrayDeque<>();
+	private long lastEnd = -1, next;
+	private int sequential = 0;
+	private boolean eof;
+
+	public StripedReader(TransferEngine engine, Source source) {
+		this.engine = engine;
+		this.source = source;
+	}
+
+	/*
+	 * Returns -1 if not handled, for caller to read directly
+	 */
+	protected synchronized int read(long offset, int size, byte[] data)
+			throws IOException {
+		sequential = offset == lastEnd ? sequential + 1 : 0;
+		lastEnd = offset + size;
+		if (sequential < SEQUENTIAL_THRESHOLD || !engine.isEnabled()) {
+			drop();
+			return -1;
+		}
+
+		if (blockSize == 0) {
+			blockSize = source.blockSize();
+		}
+		if (window.isEmpty() || offset < window.peekFirst().offset() ||
+				offset >= next) {
+			drop();
+			next = offset - offset % blockSize;
+			eof = false;
+		}
+
+		int copied = 0;
+		while (copied < size) {
+			var pos = offset + copied;
+			while (!window.isEmpty() &&
+					window.peekFirst().offset() + blockSize <= pos) {
+				release(window.pollFirst());
+			}
+			fill();
+
+			var b = window.peekFirst();
+			if (b == null) {
+				// out of budget
+				var rest = new byte[size - copied];
+				var n = source.read(pos, rest, rest.length);
+				if (n > 0) {
+					System.arraycopy(rest, 0, data, copied, n);
+					copied += n;
+				}
+				break;
+			}
+
+			var len = await(b);
+			var start = (int) (pos - b.offset());
+			if (start >= len) {
+				break;
+			}
+			var n = Math.min(len - start, size - copied);
+			System.arraycopy(b.buf(), start, data, copied, n);
+			copied += n;
+			if (len < blockSize) {
+				break;
+			}
+		}
+		return copied;
+	}
+
+	private void fill() {
+		while (!eof && window.size() < engine.getDepth() &&
+				engine.tryReserve(blockSize)) {
+			var offset = next;
+			var buf = engine.obtainBuffer(blockSize);
+			var state = new AtomicInteger(PENDING);
+			var size = blockSize;
+			var future = engine.getPool().submit(() -> {
+				if (!state.compareAndSet(PENDING, RUNNING)) {
+					return 0;
+				}
+				// blocks overlap, sections would not nest
+				var cookie = Tracer.beginAsync("readahead");
+				try {
+					return source.prefetch(offset, buf, buf.length);
+				} finally {
+					Tracer.endAsync("readahead", cookie);
+					// released while filling, returned here instead
+					if (!state.compareAndSet(RUNNING, DONE)) {
+						engine.release(size);
+						engine.recycle(buf);
+					}
+				}
+			});
+			window.addLast(new Block(offset, buf, future, state));
+			next += blockSize;
+		}
+	}
+
+	private int await(Block b) throws IOException {
+		try {
+			int len;
+			try {
+				len = b.future().get();
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof CephFSExecutor.DroppedException)) {
+					throw e;
+				}
+				// needed now
+				len = source.read(b.offset(), b.buf(), b.buf().length);
+			}
+			if (len < blockSize) {
+				eof = true;
+				// anything after is past EOF
+				while (window.peekLast() != b) {
+					release(window.pollLast());
+				}
+				next = b.offset() + blockSize;
+			}
+			return len;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			drop();
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// a worker still filling it returns it when done instead
+	private void release(Block b) {
+		b.future().cancel(false);
+		if (b.state().getAndSet(RELEASED) != RUNNING) {
+			engine.release(blockSize);
+			engine.recycle(b.buf());
+		}
+	}
+
+	private void drop() {
+		while (!window.isEmpty()) {
+			release(window.pollFirst());
+		}
+	}
+
+	// on writes, or when done
+	protected synchronized void invalidate() {
+		drop();
+		sequential = 0;
+		lastEnd = -1;
+	}
+}
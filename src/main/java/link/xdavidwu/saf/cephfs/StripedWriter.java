@@ -0,0 +1,215 @@
+package link.xdavidwu.saf.cephfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Write-behind for large sequential writes, with blocks aligned to stripe
+ * units; opt-in, see TransferEngine.isWriteBehindEnabled()
+ *
+ * Writes go directly until a sequential run reaches a block, so small
+ * files and random writes see their errors as before. Filled blocks are
+ * written in parallel on TransferEngine. A write elsewhere waits for blocks
+ * in flight first, so no older block lands over it.
+ *
+ * The first error of a block sticks as soon as it happens, failing every
+ * later write and flush. Nothing reports errors of the last blocks to apps
+ * closing without fsync, as there is no callback on close but release.
+ */
+public class StripedWriter {
+	protected interface Sink {
+		int write(long offset, byte[] buf, int size) throws IOException;
+
+		int blockSize() throws IOException;
+	}
+
+	private record Pending(Future<?> future, int reserved) {}
+
+	private TransferEngine engine;
+	private Sink sink;
+	private int blockSize = 0;
+	private byte[] buf;
+	private long bufOffset, bufEnd;
+	private int bufLen;
+	private long end = 0;
+	// where the current sequential run started, and where it is at
+	private long runStart = -1, runEnd = -1;
+	private ArrayDeque<Pending> inflight = new ArrayDeque<>();
+	private IOException error;
+	// by workers, without the lock, which flush() holds while waiting
+	private AtomicReference<IOException> failed = new AtomicReference<>();
+
+	public StripedWriter(TransferEngine engine, Sink sink) {
+		this.engine = engine;
+		this.sink = sink;
+	}
+
+	/*
+	 * Returns -1 if not handled, for caller to write directly
+	 */
+	protected synchronized int write(long offset, int size, byte[] data)
+			throws IOException {
+		reap();
+		if (error != null) {
+			throw error;
+		}
+		if (offset != runEnd) {
+			runStart = offset;
+		}
+		runEnd = offset + size;
+		// seeking back, like to patch headers, may overlap blocks in flight
+		if (buf != null ? offset != bufOffset + bufLen : !inflight.isEmpty() &&
+				offset != end) {
+			flush();
+		}
+		if (!engine.isWriteBehindEnabled()) {
+			flush();
+			return -1;
+		}
+		if (blockSize == 0) {
+			blockSize = sink.blockSize();
+		}
+		if (buf == null && inflight.isEmpty() &&
+				offset + size - runStart < blockSize) {
+			end = Math.max(end, offset + size);
+			return -1;
+		}
+
+		int copied = 0;
+		while (copied < size) {
+			if (buf == null) {
+				bufOffset = offset + copied;
+				bufEnd = bufOffset - bufOffset % blockSize + blockSize;
+				bufLen = 0;
+				// of whole blocks for reuse, the first may be filled partly
+				buf = engine.obtainBuffer(blockSize);
+			}
+			var capacity = (int) (bufEnd - bufOffset);
+			var n = Math.min(size - copied, capacity - bufLen);
+			System.arraycopy(data, copied, buf, bufLen, n);
+			bufLen += n;
+			copied += n;
+			if (bufLen == capacity) {
+				submit();
+			}
+		}
+		end = Math.max(end, offset + size);
+		return size;
+	}
+
+	private void submit() throws IOException {
+		if (buf == null) {
+			return;
+		}
+		var offset = bufOffset;
+		var block = buf;
+		var len = bufLen;
+		buf = null;
+
+		while (inflight.size() >= engine.getDepth() ||
+				!engine.tryReserve(block.length)) {
+			if (inflight.isEmpty()) {
+				try {
+					writeFully(offset, block, len);
+				} finally {
+					engine.recycle(block);
+				}
+				return;
+			}
+			await(inflight.pollFirst());
+		}
+		var future = engine.getPool().submit(() -> {
+			try {
+				writeFully(offset, block, len);
+			} catch (IOException e) {
+				failed.compareAndSet(null, e);
+				throw e;
+			} finally {
+				engine.recycle(block);
+			}
+			return null;
+		});
+		inflight.addLast(new Pending(future, block.length));
+	}
+
+	// libcephfs_jni writes from the start of the array
+	private void writeFully(long offset, byte[] block, int len)
+			throws IOException {
+		var written = sink.write(offset, block, len);
+		while (written < len) {
+			if (written <= 0) {
+				throw new IOException("short write at " + offset);
+			}
+			var rest = Arrays.copyOfRange(block, written, len);
+			var n = sink.write(offset + written, rest, rest.length);
+			if (n <= 0) {
+				throw new IOException("short write at " + (offset + written));
+			}
+			written += n;
+		}
+	}
+
+	// awaits blocks already done, in order, keeping the first error
+	private void reap() {
+		if (error == null) {
+			error = failed.get();
+		}
+		while (!inflight.isEmpty() && inflight.peekFirst().future().isDone()) {
+			try {
+				await(inflight.pollFirst());
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+	}
+
+	private void await(Pending p) throws IOException {
+		try {
+			p.future().get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			engine.release(p.reserved());
+		}
+	}
+
+	// writes out everything, and reports the first error if any
+	protected synchronized void flush() throws IOException {
+		try {
+			submit();
+		} catch (IOException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+		while (!inflight.isEmpty()) {
+			try {
+				await(inflight.pollFirst());
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	// highest offset written, including what is not yet on the cluster
+	protected synchronized long getEnd() {
+		return end;
+	}
+}
@@ -0,0 +1,105 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * android.os.Trace sections, to be seen in Perfetto along with DocumentsUI,
+ * and a ring buffer of recent slow ones for dumpsys
+ *
+ * The ring buffer takes no locks: writers claim slots with a counter, and
+ * a dump racing with writers may show a slot newer than its neighbours.
+ */
+public class Tracer {
+	private static final int CAPACITY = 256;
+	private static final long SLOW_MILLIS = 100;
+	// limit of Trace
+	private static final int MAX_NAME_LENGTH = 127;
+
+	private record Event(long start, long millis, String name, String detail,
+		String thread) {}
+
+	private static final AtomicReferenceArray<Event> events =
+		new AtomicReferenceArray<>(CAPACITY);
+	private static final AtomicLong next = new AtomicLong();
+	private static final AtomicInteger cookies = new AtomicInteger();
+
+	protected static class Section implements AutoCloseable {
+		private final String name, detail;
+		private final long start = System.nanoTime();
+
+		private Section(String name, String detail) {
+			this.name = name;
+			this.detail = detail;
+			// details only when someone is tracing, as on every read
+			if (detail != null && Build.VERSION.SDK_INT >= 29 &&
+					Trace.isEnabled()) {
+				Trace.beginSection(truncate(name + " " + detail));
+			} else {
+				Trace.beginSection(name);
+			}
+		}
+
+		@Override
+		public void close() {
+			Trace.endSection();
+			var millis = (System.nanoTime() - start) / 1000000;
+			if (millis >= SLOW_MILLIS) {
+				var slot = (int) (next.getAndIncrement() % CAPACITY);
+				events.set(slot, new Event(System.currentTimeMillis() - millis,
+					millis, name, detail, Thread.currentThread().getName()));
+			}
+		}
+	}
+
+	private static String truncate(String name) {
+		return name.length() > MAX_NAME_LENGTH ?
+			name.substring(0, MAX_NAME_LENGTH) : name;
+	}
+
+	// to be closed on the same thread, sections nest
+	protected static Section section(String name, String detail) {
+		return new Section(name, detail);
+	}
+
+	/*
+	 * For what overlaps on other threads, like blocks of read-ahead; returns
+	 * the cookie for endAsync
+	 */
+	protected static int beginAsync(String name) {
+		var cookie = cookies.incrementAndGet();
+		if (Build.VERSION.SDK_INT >= 29) {
+			Trace.beginAsyncSection(name, cookie);
+		}
+		return cookie;
+	}
+
+	protected static void endAsync(String name, int cookie) {
+		if (Build.VERSION.SDK_INT >= 29) {
+			Trace.endAsyncSection(name, cookie);
+		}
+	}
+
+	protected static void dump(PrintWriter writer) {
+		var format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.ROOT);
+		var end = next.get();
+		writer.println("slow operations (>= " + SLOW_MILLIS + "ms), oldest first:");
+		for (var i = Math.max(0, end - CAPACITY); i < end; i++) {
+			var e = events.get((int) (i % CAPACITY));
+			if (e == null) {
+				continue;
+			}
+			writer.println("  " + format.format(new Date(e.start())) + " " +
+				e.millis() + "ms " + e.thread() + ": " + e.name() +
+				(e.detail() == null ? "" : " " + e.detail()));
+		}
+	}
+}
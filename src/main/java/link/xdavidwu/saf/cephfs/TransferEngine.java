@@ -0,0 +1,138 @@
+package link.xdavidwu.saf.cephfs;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import link.xdavidwu.saf.MemoryGovernor;
+
+/*
+ * Shared state of parallel transfers: worker threads, in-flight depth per
+ * file, a byte budget across all files, and block buffers to reuse
+ *
+ * Blocks are stripe units, often MiBs, worth keeping around during
+ * sustained transfers rather than churning the heap. Idle ones are
+ * governed by MemoryGovernor, in-flight ones only by the budget.
+ *
+ * Only on-heap arrays are pooled: data of blocks is still copied to and
+ * from the array of the fd callback, and libcephfs_jni may copy arrays
+ * across JNI as well. Direct buffers would need entry points in the
+ * bindings, which are not part of this tree.
+ */
+public class TransferEngine implements MemoryGovernor.Trimmable {
+	private static final int THREADS = 8;
+
+	private ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+	private int depth;
+	private boolean writeBehind;
+	private long budget, used = 0;
+	// idle buffers by size, up to the budget, or cap, in total
+	private HashMap<Integer, ArrayDeque<byte[]>> free = new HashMap<>();
+	private long pooled = 0, hits = 0, misses = 0;
+	private long cap = Long.MAX_VALUE;
+
+	public TransferEngine() {
+		MemoryGovernor.register("idle transfer buffers", this);
+	}
+
+	protected void configure(int depth, long budget, boolean writeBehind) {
+		synchronized (this) {
+			this.depth = depth;
+			this.budget = budget;
+			this.writeBehind = writeBehind;
+			trim();
+		}
+		MemoryGovernor.rebalance();
+	}
+
+	protected synchronized boolean isEnabled() {
+		return depth > 0;
+	}
+
+	// opt-in, as apps closing without fsync never see its errors
+	protected synchronized boolean isWriteBehindEnabled() {
+		return depth > 0 && writeBehind;
+	}
+
+	protected synchronized int getDepth() {
+		return depth;
+	}
+
+	protected ExecutorService getPool() {
+		return pool;
+	}
+
+	protected synchronized boolean tryReserve(long bytes) {
+		if (used + bytes > budget) {
+			return false;
+		}
+		used += bytes;
+		return true;
+	}
+
+	protected synchronized void release(long bytes) {
+		used -= bytes;
+	}
+
+	protected synchronized byte[] obtainBuffer(int size) {
+		var idle = free.get(size);
+		if (idle != null && !idle.isEmpty()) {
+			pooled -= size;
+			hits++;
+			return idle.pop();
+		}
+		misses++;
+		return new byte[size];
+	}
+
+	// only once nothing else, like a worker, may still touch buf
+	protected synchronized void recycle(byte[] buf) {
+		if (pooled + buf.length > maxSize()) {
+			return;
+		}
+		free.computeIfAbsent(buf.length, k -> new ArrayDeque<>()).push(buf);
+		pooled += buf.length;
+	}
+
+	protected synchronized void trim() {
+		free.clear();
+		pooled = 0;
+	}
+
+	@Override
+	public synchronized long size() {
+		return pooled;
+	}
+
+	@Override
+	public synchronized long requested() {
+		return budget;
+	}
+
+	@Override
+	public synchronized long maxSize() {
+		return Math.min(budget, cap);
+	}
+
+	@Override
+	public synchronized void resize(long maxSize) {
+		cap = maxSize;
+		trimToSize(maxSize());
+	}
+
+	@Override
+	public synchronized void trimToSize(long size) {
+		for (var idle : free.values()) {
+			while (pooled > size && !idle.isEmpty()) {
+				pooled -= idle.pop().length;
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "buffers: " + hits + " reused, " + misses + " allocated, " +
+			pooled / 1024 + " KiB idle";
+	}
+}
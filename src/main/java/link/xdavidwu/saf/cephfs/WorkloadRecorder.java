@@ -0,0 +1,84 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/*
+ * Opt-in log of provider calls as DocumentsUI makes them, for
+ * WorkloadReplayer
+ *
+ * One call per line: start in ms since recording started, duration in us,
+ * call, target, and an argument, separated by tabs. Targets are document
+ * IDs, or encoded paths for reads.
+ */
+public class WorkloadRecorder {
+	private static final String LOG_NAME = "WorkloadRecorder";
+
+	private static volatile BufferedWriter writer;
+	private static long origin;
+
+	protected static synchronized void configure(File file) {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				Log.w(LOG_NAME, "close", e);
+			}
+			writer = null;
+		}
+		if (file == null) {
+			return;
+		}
+		try {
+			writer = new BufferedWriter(new FileWriter(file));
+			origin = System.nanoTime();
+		} catch (IOException e) {
+			Log.e(LOG_NAME, "open " + file, e);
+		}
+	}
+
+	protected static synchronized boolean isRecording() {
+		return writer != null;
+	}
+
+	// startNanos from System.nanoTime()
+	protected static synchronized void record(String call, String target,
+			String arg, long startNanos) {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.write((startNanos - origin) / 1000000 + "\t" +
+				(System.nanoTime() - startNanos) / 1000 + "\t" + call + "\t" +
+				(target == null ? "" : target) + "\t" +
+				(arg == null ? "" : arg) + "\n");
+		} catch (IOException e) {
+			Log.e(LOG_NAME, "record", e);
+			configure(null);
+		}
+	}
+
+	protected static void recordRead(String path, long offset, int size,
+			long startNanos) {
+		// reads are many, skip formatting
+		if (writer == null) {
+			return;
+		}
+		record("read", Uri.encode(path, "/"), offset + ":" + size, startNanos);
+	}
+
+	protected static synchronized void flush() {
+		if (writer != null) {
+			try {
+				writer.flush();
+			} catch (IOException e) {
+				Log.w(LOG_NAME, "flush", e);
+			}
+		}
+	}
+}
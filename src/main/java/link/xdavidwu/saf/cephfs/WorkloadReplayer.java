@@ -0,0 +1,224 @@
+package link.xdavidwu.saf.cephfs;
+
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsProvider;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+/*
+ * Replays a WorkloadRecorder log against the provider, back to back, and
+ * reports latencies per call, next to those recorded
+ *
+ * Calls go through the same entry points as from DocumentsUI, but on a
+ * FakeCephMount root: documents of the log are moved onto it, after
+ * creating those named there, files as large as their reads reach. Live
+ * roots are never touched. Extra latency, and jitter on top, may be added
+ * to every operation of it, to see how a workload fares on a slower
+ * cluster.
+ *
+ * Files are only ever opened for reading, as a writable open is not what
+ * was recorded of the content anyway. Archive members read from zeros fail.
+ */
+public class WorkloadReplayer {
+	private static final int SAMPLES = 4096;
+
+	private DocumentsProvider provider;
+	private String authority;
+	private CephFSRoot root;
+	private FakeCephMount fake;
+	private TreeMap<String, LatencyRecorder> recorded = new TreeMap<>(),
+		replayed = new TreeMap<>();
+	private TreeMap<String, Integer> failures = new TreeMap<>();
+	// by encoded path, as reads are recorded
+	private HashMap<String, ParcelFileDescriptor> open = new HashMap<>();
+	private int readOnly = 0;
+
+	// root made by fake, not to be shared with anything else
+	public WorkloadReplayer(DocumentsProvider provider, String authority,
+			CephFSRoot root, FakeCephMount fake) {
+		this.provider = provider;
+		this.authority = authority;
+		this.root = root;
+		this.fake = fake;
+	}
+
+	protected void replay(File log, long latencyMillis, long jitterMillis,
+			PrintWriter writer) throws IOException {
+		fixture(log);
+		root.executor.setInjectedLatency(latencyMillis);
+		root.executor.setInjectedJitter(jitterMillis);
+		try (var reader = new BufferedReader(new FileReader(log))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				var fields = line.split("\t", -1);
+				long duration;
+				try {
+					duration = fields.length == 5 ? Long.parseLong(fields[1]) : -1;
+				} catch (NumberFormatException e) {
+					duration = -1;
+				}
+				if (duration < 0) {
+					continue;
+				}
+				var call = fields[2];
+				recorded.computeIfAbsent(call, k -> new LatencyRecorder(SAMPLES))
+					.record(duration / 1000);
+				var start = System.nanoTime();
+				try {
+					run(call, call.equals("read") ? fields[3] : rebase(fields[3]),
+						fields[4]);
+				} catch (IOException|ErrnoException|RuntimeException e) {
+					failures.merge(call, 1, Integer::sum);
+				}
+				replayed.computeIfAbsent(call, k -> new LatencyRecorder(SAMPLES))
+					.record((System.nanoTime() - start) / 1000000);
+			}
+		} finally {
+			for (var pfd : open.values()) {
+				pfd.close();
+			}
+			open.clear();
+		}
+
+		writer.println("replayed " + log + " on " + root.rootUri + " with " +
+			latencyMillis + "ms, and up to " + jitterMillis +
+			"ms more, added per operation:");
+		for (var call : replayed.keySet()) {
+			writer.println("  " + call + ": " + replayed.get(call) +
+				" (recorded " + recorded.get(call) + ", failed " +
+				failures.getOrDefault(call, 0) + ")");
+		}
+		if (readOnly > 0) {
+			writer.println("  " + readOnly +
+				" writable opens replayed as read-only");
+		}
+	}
+
+	// the same document, on our root
+	private String rebase(String documentId) {
+		var scheme = documentId.indexOf("://");
+		if (scheme < 0) {
+			return documentId;
+		}
+		// authorities are encoded, with no '/' in them
+		var path = documentId.indexOf('/', scheme + 3);
+		return root.rootUri + (path < 0 ? "" : documentId.substring(path));
+	}
+
+	// creates what the log names, as directories where anything is under
+	private void fixture(File log) throws IOException {
+		var dirs = new HashSet<String>();
+		var files = new HashMap<String, Long>();
+		try (var reader = new BufferedReader(new FileReader(log))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				var fields = line.split("\t", -1);
+				if (fields.length != 5 || fields[3].isEmpty()) {
+					continue;
+				}
+				try {
+					switch (fields[2]) {
+					case "queryChildDocuments" ->
+						dirs.add(Uri.parse(fields[3]).getPath());
+					case "queryDocument", "openDocument", "getDocumentMetadata",
+							"openDocumentThumbnail" -> files.putIfAbsent(
+						Uri.parse(fields[3]).getPath(), 0L);
+					case "read" -> {
+						var range = fields[4].split(":");
+						files.merge(Uri.decode(fields[3]),
+							Long.parseLong(range[0]) + Long.parseLong(range[1]),
+							Math::max);
+					}
+					}
+				} catch (RuntimeException e) {
+					// malformed, skipped by replay as well
+				}
+			}
+		}
+		for (var path : files.keySet()) {
+			for (var i = path.lastIndexOf('/'); i > 0;
+					i = path.lastIndexOf('/', i - 1)) {
+				dirs.add(path.substring(0, i));
+			}
+		}
+		for (var dir : dirs) {
+			populate(dir, true, 0);
+		}
+		for (var e : files.entrySet()) {
+			if (!dirs.contains(e.getKey())) {
+				populate(e.getKey(), false, e.getValue());
+			}
+		}
+	}
+
+	private void populate(String path, boolean dir, long size) {
+		if (path == null || path.isEmpty() || path.equals("/")) {
+			return;
+		}
+		try {
+			fake.populate(path, dir, size);
+		} catch (IOException e) {
+			// named as both a file and a directory, calls on it fail
+		}
+	}
+
+	private void run(String call, String target, String arg)
+			throws IOException, ErrnoException {
+		switch (call) {
+		// of our root alone, the provider would reach all live ones
+		case "queryRoots" -> root.stats.statfs(root.executor);
+		case "queryChildDocuments" -> query(
+			DocumentsContract.buildChildDocumentsUri(authority, target));
+		case "queryDocument" -> query(
+			DocumentsContract.buildDocumentUri(authority, target));
+		case "openDocument" -> {
+			if (!arg.equals("r")) {
+				readOnly++;
+			}
+			var pfd = provider.openDocument(target, "r", null);
+			var old = open.put(Uri.encode(Uri.parse(target).getPath(), "/"),
+				pfd);
+			if (old != null) {
+				old.close();
+			}
+		}
+		case "read" -> {
+			var pfd = open.get(target);
+			if (pfd == null) {
+				throw new IOException("read without open: " + target);
+			}
+			var range = arg.split(":");
+			var size = Integer.parseInt(range[1]);
+			Os.pread(pfd.getFileDescriptor(), new byte[size], 0, size,
+				Long.parseLong(range[0]));
+		}
+		case "getDocumentMetadata" -> provider.getDocumentMetadata(target);
+		case "openDocumentThumbnail" -> provider.openDocumentThumbnail(
+			target, new Point(256, 256), null).close();
+		default -> throw new IllegalArgumentException("unknown call " + call);
+		}
+	}
+
+	private void query(Uri uri) {
+		var c = provider.query(uri, null, (Bundle) null, null);
+		if (c == null) {
+			throw new IllegalStateException("no cursor for " + uri);
+		}
+		// rows are built up front, but just in case
+		c.getCount();
+		c.close();
+	}
+}